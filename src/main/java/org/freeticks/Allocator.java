@@ -0,0 +1,13 @@
+package org.freeticks;
+
+import sun.nio.ch.DirectBuffer;
+
+import java.nio.ByteBuffer;
+
+// source of the memory behind an UnsafeBuffer, zeroed and valid while the returned buffer is reachable
+@FunctionalInterface
+public interface Allocator {
+    DirectBuffer allocate(int bytes);
+
+    Allocator DIRECT = bytes -> (DirectBuffer) ByteBuffer.allocateDirect(bytes);
+}
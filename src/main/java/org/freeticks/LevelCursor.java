@@ -0,0 +1,18 @@
+package org.freeticks;
+
+// reusable walk over not empty levels of one side from the touch away, allocates nothing.
+// bids() or asks() starts a walk, next() steps to the following level
+public interface LevelCursor
+{
+    LevelCursor bids();
+
+    LevelCursor asks();
+
+    // false when there are no more levels
+    boolean next();
+
+    long price();
+
+    // aggregate volume of the level, negative for asks
+    long volume();
+}
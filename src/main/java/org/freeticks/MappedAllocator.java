@@ -0,0 +1,42 @@
+package org.freeticks;
+
+import sun.nio.ch.DirectBuffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.*;
+
+// memory mapped from files in dir, named 0.mem, 1.mem, ... in the order of allocation.
+// the page cache holds the data instead of the heap or native memory, so arenas may outgrow ram
+// and other processes can map the same files to watch a live book. existing files are truncated,
+// the contents are not meant to be reopened as a book, use OffHeapBook.snapshot for that
+public class MappedAllocator implements Allocator
+{
+    final Path dir;
+    int count;
+
+    public MappedAllocator(Path dir) {
+        this.dir = dir;
+    }
+
+    public Path file(int index) {
+        return dir.resolve(index + ".mem");
+    }
+
+    @Override
+    public DirectBuffer allocate(int bytes) {
+        try {
+            Files.createDirectories(dir);
+            // the mapping outlives the channel, pages of a fresh file read as zeros
+            try(FileChannel channel = FileChannel.open(file(count++), CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+                return (DirectBuffer) channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
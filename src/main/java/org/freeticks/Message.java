@@ -7,10 +7,10 @@ public class Message implements Tick {
     long id;
     long cookie;
     long flags;
-    long serverTime;
-    long serverTimeNanos;
+    long serverTime;        // epoch seconds
+    long serverNano;        // nanosecond of the second
     long clientTime;
-    long clientTimeNanos;
+    long clientNano;
 
     public static long lastId = 0;
 
@@ -46,22 +46,32 @@ public class Message implements Tick {
 
     @Override
     public Instant serverTime() {
-        return Instant.ofEpochSecond(serverTime, serverTimeNanos);
+        return Instant.ofEpochSecond(serverTime, serverNano);
+    }
+
+    @Override
+    public long serverTimeNanos() {
+        return serverTime * NANOS + serverNano;
     }
 
     public void setServerTime(Instant value) {
         this.serverTime = value.getEpochSecond();
-        this.serverTimeNanos = value.getNano();
+        this.serverNano = value.getNano();
     }
 
     @Override
     public Instant clientTime() {
-        return Instant.ofEpochSecond(clientTime, clientTimeNanos);
+        return Instant.ofEpochSecond(clientTime, clientNano);
+    }
+
+    @Override
+    public long clientTimeNanos() {
+        return clientTime * NANOS + clientNano;
     }
 
     public void setClientTIme(Instant value) {
         this.clientTime = value.getEpochSecond();
-        this.clientTimeNanos = value.getNano();
+        this.clientNano = value.getNano();
     }
 
     @Override
@@ -1,8 +1,6 @@
 package org.freeticks;
 
-import java.time.Instant;
-
-public interface Order extends Tick
+public interface Order extends Tick, OrderFields
 {
     int evt();
     //void setEvt(int value);
@@ -21,11 +19,5 @@ public interface Order extends Tick
 
     long filled();
     //void setFilled(long filled);
-
-    Instant serverTime();
-    //void setServerTime(Instant value);
-
-    Instant clientTime();
-    //void setClientTIme(Instant value);
 }
 
@@ -20,6 +20,12 @@ public interface OrderBook {
     // orders at price
     LongStream orders(long price);
 
+    // cursor over levels for depth walks without garbage, create once and reuse
+    LevelCursor levelCursor();
+
+    // cursor over orders at a price without garbage, create once and reuse
+    OrderCursor orderCursor();
+
     // lowest price
     long low();
 
@@ -38,6 +44,16 @@ public interface OrderBook {
     // next order id by previous order id
     long next(long id);
 
+    // sum of price * filled of a market order of volume, > 0 buys the asks and < 0 sells to the bids.
+    // only the part that fills counts if the side holds less
+    long sweepCost(long volume);
+
+    // worst price such a market order reaches, NO_ASK or NO_BID if the side holds less than volume
+    long priceForVolume(long volume);
+
+    // volume less than ticks away from the touch, of the asks for ticks > 0 and the bids for ticks < 0
+    long volumeWithin(long ticks);
+
     default boolean hasBids() { return bid()!=NO_BID; }
 
     default boolean hasAsks() { return ask()!=NO_ASK; }
@@ -0,0 +1,19 @@
+package org.freeticks;
+
+// reusable walk over the queue of orders at one price in time priority, allocates nothing.
+// at(price) starts a walk, next() steps to the following order
+public interface OrderCursor
+{
+    OrderCursor at(long price);
+
+    // false when there are no more orders
+    boolean next();
+
+    long id();
+
+    long price();
+
+    long volume();
+
+    long cookie();
+}
@@ -4,19 +4,49 @@ public class OrderEvent {
     public static final int UNKNOWN     = 0;
     public static final int PLACE       = 0x1001;
     public static final int CANCEL      = 0x1002;
+    public static final int AMEND       = 0x1003;
+    public static final int EXPIRE      = 0x1004;
+    public static final int STOP        = 0x1005;   // stop accepted, waits for its trigger
+    public static final int TRIGGER     = 0x1006;   // stop triggered, enters the book
+    public static final int ICEBERG     = 0x1007;   // command placing an iceberg, accepted as PLACE of its shown part
+    public static final int REPLENISH   = 0x1008;   // iceberg shows the next part at the tail of its level
+    public static final int PEG         = 0x1009;   // command placing a pegged order, accepted as PLACE
+    public static final int PLACE_FOK   = 0x100A;   // commands placing OrderType.FOK, MIN_QTY, POST_ONLY orders
+    public static final int PLACE_MIN_QTY   = 0x100B;
+    public static final int PLACE_POST_ONLY = 0x100C;
+    public static final int OWNER       = 0x100D;   // command setting the owner of the orders placed next
     public static final int FILL        = 0x2001;
     public static final int PARTFILL    = 0x2002;
 
     public static final int REJECT          = 0x8001;
     public static final int REJECT_CANCEL   = 0x8002;
+    public static final int REJECT_AMEND    = 0x8003;
+    public static final int REJECT_FOK      = 0x8004;   // not enough volume to fill it now
+    public static final int REJECT_MIN_QTY  = 0x8005;   // not enough volume for its minimum quantity now
+    public static final int REJECT_POST_ONLY = 0x8006;  // would take
     public static String nameOf(int evt) {
         switch(evt){
             case PLACE: return "PLACE";
             case CANCEL: return "CANCEL";
+            case AMEND: return "AMEND";
+            case EXPIRE: return "EXPIRE";
+            case STOP: return "STOP";
+            case TRIGGER: return "TRIGGER";
+            case ICEBERG: return "ICEBERG";
+            case REPLENISH: return "REPLENISH";
+            case PEG: return "PEG";
+            case PLACE_FOK: return "PLACE_FOK";
+            case PLACE_MIN_QTY: return "PLACE_MIN_QTY";
+            case PLACE_POST_ONLY: return "PLACE_POST_ONLY";
+            case OWNER: return "OWNER";
             case FILL: return "FILL";
             case PARTFILL: return "PARTFILL";
             case REJECT: return "REJECT";
             case REJECT_CANCEL: return "REJECT_CANCEL";
+            case REJECT_AMEND: return "REJECT_AMEND";
+            case REJECT_FOK: return "REJECT_FOK";
+            case REJECT_MIN_QTY: return "REJECT_MIN_QTY";
+            case REJECT_POST_ONLY: return "REJECT_POST_ONLY";
         }
         return String.format("UNK(%d)",evt);
     }
@@ -0,0 +1,14 @@
+package org.freeticks;
+
+// what an order or order event is, without the times of a Tick. flyweights over book memory give these
+// only, the book keeps no clock
+public interface OrderFields
+{
+    int evt();
+    long id();
+    long cookie();
+    long flags();
+    long price();
+    long active();
+    long filled();
+}
@@ -4,6 +4,16 @@ public interface OrderType {
     int BUY         = 0x0001;
     int SELL        = 0x0002;
 
+    // pegged orders follow a reference price: the best price of orders that are not pegged on the order's
+    // side for PRIMARY, the middle of the best bid and ask of such orders for MID
+    int PEG_PRIMARY = 0x0010;
+    int PEG_MID     = 0x0020;
+
+    // conditions OffHeapBook checks before the order takes anything, rejected orders leave the book untouched
+    int FOK         = 0x0100;   // fills all of its volume now
+    int MIN_QTY     = 0x0200;   // fills at least the minimum quantity now
+    int POST_ONLY   = 0x0400;   // takes nothing
+
     long IOC        = 0;
     long GTC        = -1;
 }
@@ -4,10 +4,22 @@ import java.time.Instant;
 
 public interface Tick
 {
+    long NANOS = 1_000_000_000L;
+
     int evt();
     long id();
     long cookie();
     long flags();
-    Instant serverTime();
-    Instant clientTime();
+
+    // nanoseconds since the epoch, 0 if unknown
+    long serverTimeNanos();
+    long clientTimeNanos();
+
+    default Instant serverTime() {
+        return Instant.ofEpochSecond(Math.floorDiv(serverTimeNanos(), NANOS), Math.floorMod(serverTimeNanos(), NANOS));
+    }
+
+    default Instant clientTime() {
+        return Instant.ofEpochSecond(Math.floorDiv(clientTimeNanos(), NANOS), Math.floorMod(clientTimeNanos(), NANOS));
+    }
 }
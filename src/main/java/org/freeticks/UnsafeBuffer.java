@@ -15,9 +15,13 @@ public class UnsafeBuffer {
     protected final DirectBuffer bytes;
 
     public UnsafeBuffer(long capacity, long elementSize) {
+        this(capacity, elementSize, Allocator.DIRECT);
+    }
+
+    public UnsafeBuffer(long capacity, long elementSize, Allocator allocator) {
         this.elementSize = elementSize;
-        int cap = (int)(elementSize*capacity);
-        this.bytes =  ((DirectBuffer)ByteBuffer.allocateDirect(cap));
+        int cap = Math.toIntExact(Math.multiplyExact(elementSize, capacity));   // a ByteBuffer holds at most 2GB
+        this.bytes = allocator.allocate(cap);
         this.headAddress = bytes.address();
         this.tailAddress = bytes.address() + cap;
     }
@@ -56,4 +60,80 @@ public class UnsafeBuffer {
 
         UnsafeMemory.UNSAFE.putInt(addr, value);
     }
+
+    @ForceInline
+    public final long getLongVolatile(long addr) {
+        if(BOUNDS)
+            if(addr< headAddress || addr + Long.BYTES> tailAddress)
+                throw new IndexOutOfBoundsException();
+        return UnsafeMemory.UNSAFE.getLongVolatile(null, addr);
+    }
+
+    // store that is not reordered with preceding stores, enough to publish to a reader using getLongVolatile
+    @ForceInline
+    public final void putLongOrdered(long addr, long value) {
+        if(BOUNDS)
+            if(addr< headAddress || addr + Long.BYTES> tailAddress)
+                throw new IndexOutOfBoundsException();
+        UnsafeMemory.UNSAFE.putOrderedLong(null, addr, value);
+    }
+
+    @ForceInline
+    public final boolean compareAndSwapLong(long addr, long expected, long value) {
+        if(BOUNDS)
+            if(addr< headAddress || addr + Long.BYTES> tailAddress)
+                throw new IndexOutOfBoundsException();
+        return UnsafeMemory.UNSAFE.compareAndSwapLong(null, addr, expected, value);
+    }
+
+    // copies within this buffer, overlapping ranges behave like memmove. copyIn and copyOut cross buffers
+    public final void copyMemory(long from, long to, long bytes) {
+        if(BOUNDS)
+            if(from< headAddress || from + bytes> tailAddress || to< headAddress || to + bytes> tailAddress)
+                throw new IndexOutOfBoundsException();
+        UnsafeMemory.UNSAFE.copyMemory(from, to, bytes);
+    }
+
+    // copies bytes at offset in this buffer to addr outside of it
+    public final void copyOut(long offset, long addr, long bytes) {
+        if(BOUNDS)
+            if(offset < 0 || headAddress + offset + bytes > tailAddress)
+                throw new IndexOutOfBoundsException();
+        UnsafeMemory.UNSAFE.copyMemory(headAddress + offset, addr, bytes);
+    }
+
+    // copies bytes at addr outside of this buffer to offset in it
+    public final void copyIn(long addr, long offset, long bytes) {
+        if(BOUNDS)
+            if(offset < 0 || headAddress + offset + bytes > tailAddress)
+                throw new IndexOutOfBoundsException();
+        UnsafeMemory.UNSAFE.copyMemory(addr, headAddress + offset, bytes);
+    }
+
+    // address of offset in this buffer
+    public final long address(long offset) {
+        return headAddress + offset;
+    }
+
+    public final long byteSize() {
+        return tailAddress - headAddress;
+    }
+
+    // address of the memory of a direct or mapped buffer
+    public static long address(ByteBuffer buffer) {
+        return ((DirectBuffer) buffer).address();
+    }
+
+    // frees or unmaps the memory of a direct or mapped buffer now, not when it is collected. buffer must not be
+    // used after
+    public static void unmap(ByteBuffer buffer) {
+        ((DirectBuffer) buffer).cleaner().clean();
+    }
+
+    public final void setMemory(long addr, long bytes, byte value) {
+        if(BOUNDS)
+            if(addr< headAddress || addr + bytes> tailAddress)
+                throw new IndexOutOfBoundsException();
+        UnsafeMemory.UNSAFE.setMemory(addr, bytes, value);
+    }
 }
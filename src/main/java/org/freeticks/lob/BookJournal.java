@@ -0,0 +1,74 @@
+package org.freeticks.lob;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.queue.ChronicleQueue;
+import net.openhft.chronicle.queue.ExcerptAppender;
+import net.openhft.chronicle.queue.ExcerptTailer;
+import net.openhft.chronicle.queue.impl.single.SingleChronicleQueueBuilder;
+import net.openhft.chronicle.wire.DocumentContext;
+import net.openhft.chronicle.wire.WireType;
+
+import java.nio.file.Path;
+
+// chronicle queue of the commands given to an OffHeapBook as command records of dispatchBatch, one excerpt
+// per command that came through dispatch or the book's methods and one per dispatchBatch holding all the
+// commands of the batch. the book is deterministic in its commands, so replaying the journal into an
+// empty book rebuilds it exactly.
+public class BookJournal implements AutoCloseable
+{
+    final ChronicleQueue queue;
+    final ExcerptAppender appender;
+
+    public BookJournal(Path path) {
+        this.queue = open(path);
+        this.appender = queue.acquireAppender();
+    }
+
+    static ChronicleQueue open(Path path) {
+        return SingleChronicleQueueBuilder.binary(path)
+                .wireType(WireType.FIELDLESS_BINARY)
+                .build();
+    }
+
+    public void write(int evt, long volume, long price, long id, long cookie, long goodTill) {
+        try(DocumentContext dc = appender.writingDocument()) {
+            OffHeapBook.writeCommand(dc.wire().bytes(), evt, volume, price, id, cookie, goodTill);
+        }
+    }
+
+    // command records of in from from to to in one excerpt
+    public void write(Bytes<?> in, long from, long to) {
+        try(DocumentContext dc = appender.writingDocument()) {
+            dc.wire().bytes().write(in, from, to - from);
+        }
+    }
+
+    // dispatches every journaled command to book in order, returns their number.
+    // book should not write to a journal itself
+    public static long replay(Path path, OffHeapBook book) {
+        try(ChronicleQueue queue = open(path)) {
+            ExcerptTailer tailer = queue.createTailer();
+            long count = 0;
+            for(;;) {
+                try(DocumentContext dc = tailer.readingDocument()) {
+                    if(!dc.isPresent())
+                        return count;
+                    // the excerpt may be padded after its last record
+                    Bytes<?> in = dc.wire().bytes();
+                    long end = in.readLimit() - OffHeapBook.COMMAND_SIZE;
+                    for(long at = in.readPosition(); at <= end; at += OffHeapBook.COMMAND_SIZE) {
+                        book.dispatch(in.readInt(at + OffHeapBook.C_EVT), in.readLong(at + OffHeapBook.C_VOLUME),
+                                in.readLong(at + OffHeapBook.C_PRICE), in.readLong(at + OffHeapBook.C_ID),
+                                in.readLong(at + OffHeapBook.C_COOKIE), in.readLong(at + OffHeapBook.C_GOODTILL));
+                        count++;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+    }
+}
@@ -0,0 +1,138 @@
+package org.freeticks.lob;
+
+// books of many symbols partitioned over shards. every shard is a worker thread with its own command ring,
+// it creates and owns the books of its symbols, so a book is only ever touched by one thread and needs no locks.
+// commands are routed by symbol, results come back through the handlers the factory gives to the books.
+// a command a book throws on is reported to that book's error handler as a REJECT and the shard goes on.
+public class BookRegistry implements AutoCloseable
+{
+    @FunctionalInterface
+    public interface BookFactory {
+        OffHeapBook create(int symbol);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private int shards = 1;
+        private int symbols = 1024;
+        private int ringSize = 65536;
+        private boolean pinned;
+        private boolean singleProducer;
+        private BookFactory factory = symbol -> OffHeapBook.builder().build();
+
+        public Builder shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        // symbols are 0 until symbols-1
+        public Builder symbols(int symbols) {
+            this.symbols = symbols;
+            return this;
+        }
+
+        public Builder ringSize(int ringSize) {
+            this.ringSize = ringSize;
+            return this;
+        }
+
+        // bind every worker to its own cpu, needs the affinity library
+        public Builder pinned(boolean pinned) {
+            this.pinned = pinned;
+            return this;
+        }
+
+        // every ring is offered to by one thread at a time, claims need no CAS
+        public Builder singleProducer(boolean singleProducer) {
+            this.singleProducer = singleProducer;
+            return this;
+        }
+
+        public Builder books(BookFactory factory) {
+            this.factory = factory;
+            return this;
+        }
+
+        public BookRegistry build() {
+            return new BookRegistry(this);
+        }
+    }
+
+    final class Shard implements CommandRing.CommandHandler {
+        final MatchingLoop loop;
+
+        Shard(int index, Builder params) {
+            loop = new MatchingLoop("book-shard-" + index, new CommandRing(params.ringSize, params.singleProducer),
+                    this, params.pinned);
+        }
+
+        @Override
+        public void apply(int evt, int symbol, long volume, long price, long id, long cookie, long goodTill) {
+            OffHeapBook book = books[symbol];
+            if(book == null)
+                books[symbol] = book = factory.create(symbol);  // allocated by the owning thread
+            MatchingLoop.dispatch(book, evt, volume, price, id, cookie, goodTill);
+        }
+    }
+
+    final OffHeapBook[] books;
+    final Shard[] shards;
+    final BookFactory factory;
+
+    public BookRegistry(Builder params) {
+        this.books = new OffHeapBook[params.symbols];
+        this.factory = params.factory;
+        this.shards = new Shard[params.shards];
+        for(int i = 0; i < shards.length; i++)
+            shards[i] = new Shard(i, params);
+    }
+
+    public BookRegistry start() {
+        for(Shard shard : shards)
+            shard.loop.start();
+        return this;
+    }
+
+    public int shardOf(int symbol) {
+        return symbol % shards.length;
+    }
+
+    // shard of a symbol checked by the producer, a shard never sees one it has no book for
+    private Shard shard(int symbol) {
+        if(symbol < 0 || symbol >= books.length)
+            throw new IllegalArgumentException("symbol " + symbol);
+        return shards[shardOf(symbol)];
+    }
+
+    // queues command for the book of symbol, false if the ring of its shard is full
+    public boolean offer(int symbol, int evt, long volume, long price, long id, long cookie, long goodTill) {
+        return shard(symbol).loop.ring.offer(evt, symbol, volume, price, id, cookie, goodTill);
+    }
+
+    // queues command for the book of symbol, waiting while the ring of its shard is full
+    public void dispatch(int symbol, int evt, long volume, long price, long id, long cookie, long goodTill) {
+        shard(symbol).loop.dispatch(evt, symbol, volume, price, id, cookie, goodTill);
+    }
+
+    // waits until every command queued so far was handled
+    public void flush() {
+        for(Shard shard : shards)
+            shard.loop.flush();
+    }
+
+    // book of symbol, null if it got no commands yet. safe to use from other threads only after close
+    public OffHeapBook book(int symbol) {
+        return books[symbol];
+    }
+
+    // handles queued commands and stops workers
+    @Override
+    public void close() {
+        for(Shard shard : shards)
+            shard.loop.close();
+    }
+}
@@ -0,0 +1,126 @@
+package org.freeticks.lob;
+
+import org.freeticks.UnsafeBuffer;
+
+// bounded lock-free ring of fixed width order commands for many producers and one consumer.
+// producers claim a record by CAS on the tail counter, fill it and publish it by an ordered store
+// of its sequence, so the consumer never sees a half written command. tail and head counters
+// sit on their own cache lines away from the records.
+// a ring for a single producer claims by a plain store and reads the head only when its copy says full.
+public class CommandRing extends UnsafeBuffer {
+    final static int LINE = 64;
+    final static int TAIL = 0;          // next record to claim, shared by producers
+    final static int LIMIT = 8;         // single producer copy of head + capacity
+    final static int HEAD = LINE;       // next record to consume, written by the consumer only
+    final static int RECORDS = 3 * LINE;
+
+    // record fields
+    final static int SEQ        = 0;    // index + 1 once the record is published
+    final static int EVT        = 8;
+    final static int SYMBOL     = 12;
+    final static int VOLUME     = 16;
+    final static int PRICE      = 24;
+    final static int ID         = 32;
+    final static int COOKIE     = 40;
+    final static int GOODTILL   = 48;
+    final static int RECORD_SIZE = 64;
+
+    @FunctionalInterface
+    public interface CommandHandler {
+        void apply(int evt, int symbol, long volume, long price, long id, long cookie, long goodTill);
+    }
+
+    final long capacity;
+    final long mask;
+    final long records;
+    final boolean singleProducer;
+    long head;          // consumer copy of HEAD
+
+    // capacity is rounded up to a power of two
+    public CommandRing(long capacity) {
+        this(capacity, false);
+    }
+
+    // singleProducer rings must only be offered to by one thread at a time
+    public CommandRing(long capacity, boolean singleProducer) {
+        super(ringSize(capacity) + RECORDS / RECORD_SIZE, RECORD_SIZE);
+        this.capacity = ringSize(capacity);
+        this.mask = this.capacity - 1;
+        this.records = headAddress + RECORDS;
+        this.singleProducer = singleProducer;
+        putLong(headAddress + LIMIT, this.capacity);
+    }
+
+    static long ringSize(long capacity) {
+        return capacity <= 1 ? 1 : Long.highestOneBit(capacity - 1) << 1;
+    }
+
+    long record(long seq) {
+        return records + (seq & mask) * RECORD_SIZE;
+    }
+
+    // false if the ring is full
+    public boolean offer(int evt, int symbol, long volume, long price, long id, long cookie, long goodTill) {
+        long seq = singleProducer ? claim() : claimShared();
+        if(seq < 0)
+            return false;
+        long at = record(seq);
+        putInt(at + EVT, evt);
+        putInt(at + SYMBOL, symbol);
+        putLong(at + VOLUME, volume);
+        putLong(at + PRICE, price);
+        putLong(at + ID, id);
+        putLong(at + COOKIE, cookie);
+        putLong(at + GOODTILL, goodTill);
+        putLongOrdered(at + SEQ, seq + 1);
+        return true;
+    }
+
+    private long claim() {
+        long seq = getLong(headAddress + TAIL);
+        if(seq >= getLong(headAddress + LIMIT)) {
+            long limit = getLongVolatile(headAddress + HEAD) + capacity;
+            if(seq >= limit)
+                return -1;
+            putLong(headAddress + LIMIT, limit);
+        }
+        putLongOrdered(headAddress + TAIL, seq + 1);
+        return seq;
+    }
+
+    private long claimShared() {
+        long seq;
+        do {
+            seq = getLongVolatile(headAddress + TAIL);
+            if(seq - getLongVolatile(headAddress + HEAD) >= capacity)
+                return -1;
+        } while(!compareAndSwapLong(headAddress + TAIL, seq, seq + 1));
+        return seq;
+    }
+
+    // hands up to limit published commands to handler in order and frees their records, returns their number.
+    // consumer thread only
+    public int drain(CommandHandler handler, int limit) {
+        long seq = head;
+        int n = 0;
+        while(n < limit) {
+            long at = record(seq);
+            if(getLongVolatile(at + SEQ) != seq + 1)
+                break;
+            handler.apply(getInt(at + EVT), getInt(at + SYMBOL), getLong(at + VOLUME), getLong(at + PRICE),
+                    getLong(at + ID), getLong(at + COOKIE), getLong(at + GOODTILL));
+            seq++;
+            n++;
+        }
+        if(n > 0) {
+            head = seq;
+            putLongOrdered(headAddress + HEAD, seq);
+        }
+        return n;
+    }
+
+    // true when every command offered so far was handled
+    public boolean isEmpty() {
+        return getLongVolatile(headAddress + HEAD) == getLongVolatile(headAddress + TAIL);
+    }
+}
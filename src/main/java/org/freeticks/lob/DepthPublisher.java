@@ -0,0 +1,306 @@
+package org.freeticks.lob;
+
+import net.openhft.chronicle.bytes.Bytes;
+import org.freeticks.LevelCursor;
+
+import static org.freeticks.OrderBook.NO_ASK;
+import static org.freeticks.OrderBook.NO_BID;
+
+// market by price feed of the top depth levels of each side of one book, as binary messages appended to out.
+// the book reports every price whose level volume changes; a change at or better than the worst level
+// of the published view goes to a small dirty set of its side, changes deeper in the book cost a compare.
+// publish applies only the dirty prices to the view, reads the levels that move up into a view that lost
+// some, and sends what changed. a side with more dirty prices than the set holds is walked to depth again.
+// message: type int, count int, seq long, then count entries of price long, volume long. volume is signed
+// like the book's, 0 removes the price from the view. deltas carry consecutive seq from 1, a snapshot carries
+// the seq of the last delta it includes, so a late joiner applies the snapshot and then deltas after its seq
+public class DepthPublisher
+{
+    public final static int DELTA = 1;
+    public final static int SNAPSHOT = 2;
+    final static int HEADER = 16;
+    final static int ENTRY = 16;
+
+    public interface DepthHandler {
+        // start of a message, a snapshot replaces the whole view
+        void begin(int type, long seq);
+
+        void level(long price, long volume);
+    }
+
+    final class Side {
+        final int dir;
+        final long none;
+        long[] prices = new long[depth];
+        long[] volumes = new long[depth];
+        int count;
+        long[] nextPrices = new long[depth];
+        long[] nextVolumes = new long[depth];
+        int nextCount;
+        long edge;          // worst price of a full view, changes at or better than it are visible
+        // prices touched since the last publish with their latest level volume
+        final long[] dirtyPrices = new long[2 * depth];
+        final long[] dirtyVolumes = new long[2 * depth];
+        int dirty;
+        boolean walk;       // the dirty set ran over, the side is walked to depth
+        boolean full;       // the view was full before this publish, so the book may have levels behind it
+
+        Side(int dir) {
+            this.dir = dir;
+            this.none = dir > 0 ? NO_ASK : NO_BID;
+            this.edge = none;
+        }
+
+        boolean visible(long price) {
+            return dir > 0 ? price <= edge : price >= edge;
+        }
+
+        boolean changed() {
+            return walk || dirty > 0;
+        }
+
+        void touch(long price, long volume) {
+            if(walk)
+                return;
+            for(int i = dirty - 1; i >= 0; i--)
+                if(dirtyPrices[i] == price) {
+                    dirtyVolumes[i] = volume;
+                    return;
+                }
+            if(dirty == dirtyPrices.length) {
+                walk = true;
+                dirty = 0;
+                return;
+            }
+            dirtyPrices[dirty] = price;
+            dirtyVolumes[dirty++] = volume;
+        }
+
+        // position of price in the view, or -(insertion point)-1
+        int find(long price) {
+            int lo = 0, hi = count - 1;
+            while(lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long cmp = (prices[mid] - price) * dir;
+                if(cmp < 0)
+                    lo = mid + 1;
+                else if(cmp > 0)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -lo - 1;
+        }
+
+        void removeAt(int i) {
+            System.arraycopy(prices, i + 1, prices, i, count - i - 1);
+            System.arraycopy(volumes, i + 1, volumes, i, count - i - 1);
+            count--;
+        }
+
+        // view levels that left this side
+        int deletes() {
+            if(walk) {
+                walk();
+                return walkDeletes();
+            }
+            full = count == depth;
+            int written = 0;
+            for(int k = 0; k < dirty; k++) {
+                if(dirtyVolumes[k] * dir < 0)
+                    continue;
+                int i = find(dirtyPrices[k]);
+                if(i >= 0) {
+                    entry(prices[i], 0);
+                    removeAt(i);
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        // levels that are new or changed volume, leaves the view published
+        int updates() {
+            if(walk) {
+                int written = walkUpdates();
+                swap();
+                return written;
+            }
+            int written = 0;
+            // levels behind the view move up into the room the deletes left
+            if(full && count < depth) {
+                long price = count > 0 ? book.levelAfter(prices[count - 1], dir) : dir > 0 ? book.ask() : book.bid();
+                while(price != NO_BID && price != NO_ASK) {
+                    prices[count] = price;
+                    volumes[count] = book.levelVolume(price);
+                    entry(price, volumes[count]);
+                    written++;
+                    if(++count == depth)
+                        break;
+                    price = book.levelAfter(price, dir);
+                }
+            }
+            for(int k = 0; k < dirty; k++) {
+                long price = dirtyPrices[k], volume = dirtyVolumes[k];
+                if(volume * dir >= 0)
+                    continue;
+                int i = find(price);
+                if(i >= 0) {
+                    if(volumes[i] != volume) {
+                        volumes[i] = volume;
+                        entry(price, volume);
+                        written++;
+                    }
+                    continue;
+                }
+                i = -i - 1;
+                if(i == depth)
+                    continue;
+                if(count == depth) {
+                    entry(prices[depth - 1], 0);
+                    written++;
+                    count--;
+                }
+                System.arraycopy(prices, i, prices, i + 1, count - i);
+                System.arraycopy(volumes, i, volumes, i + 1, count - i);
+                prices[i] = price;
+                volumes[i] = volume;
+                count++;
+                entry(price, volume);
+                written++;
+            }
+            dirty = 0;
+            edge = count == depth ? prices[depth - 1] : none;
+            return written;
+        }
+
+        void walk() {
+            LevelCursor levels = dir > 0 ? cursor.asks() : cursor.bids();
+            int n = 0;
+            while(n < depth && levels.next()) {
+                nextPrices[n] = levels.price();
+                nextVolumes[n] = levels.volume();
+                n++;
+            }
+            nextCount = n;
+        }
+
+        // old levels missing from the next view
+        int walkDeletes() {
+            int written = 0;
+            for(int i = 0, j = 0; i < count; i++) {
+                while(j < nextCount && (nextPrices[j] - prices[i]) * dir < 0)
+                    j++;
+                if(j == nextCount || nextPrices[j] != prices[i]) {
+                    entry(prices[i], 0);
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        // next levels that are new or changed volume
+        int walkUpdates() {
+            int written = 0;
+            for(int j = 0, i = 0; j < nextCount; j++) {
+                while(i < count && (prices[i] - nextPrices[j]) * dir < 0)
+                    i++;
+                if(i == count || prices[i] != nextPrices[j] || volumes[i] != nextVolumes[j]) {
+                    entry(nextPrices[j], nextVolumes[j]);
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        void swap() {
+            long[] p = prices; prices = nextPrices; nextPrices = p;
+            long[] v = volumes; volumes = nextVolumes; nextVolumes = v;
+            count = nextCount;
+            edge = count == depth ? prices[depth - 1] : none;
+            walk = false;
+            dirty = 0;
+        }
+    }
+
+    final int depth;
+    final Bytes<?> out;
+    final Side bids;
+    final Side asks;
+    OffHeapBook book;
+    LevelCursor cursor;
+    long seq;
+
+    public DepthPublisher(int depth, Bytes<?> out) {
+        this.depth = depth;
+        this.out = out;
+        this.bids = new Side(-1);
+        this.asks = new Side(1);
+    }
+
+    void attach(OffHeapBook book) {
+        this.book = book;
+        this.cursor = book.levelCursor();
+        bids.walk = asks.walk = true;
+    }
+
+    // level volume at price changed to volume, its sign tells the side unless the level is gone
+    void touch(long price, long volume) {
+        if(volume >= 0 && bids.visible(price))
+            bids.touch(price, volume);
+        if(volume <= 0 && asks.visible(price))
+            asks.touch(price, volume);
+    }
+
+    // appends a delta of the changes since the last one, if any are visible. OffHeapBook publishes after
+    // every command and dispatchBatch after every batch
+    public void publish() {
+        if(!bids.changed() && !asks.changed())
+            return;
+        long start = out.writePosition();
+        out.writeInt(DELTA).writeInt(0).writeLong(seq + 1);
+        // deletes go first, a price can leave one side and enter the other in the same delta
+        int count = bids.deletes() + asks.deletes();
+        count += bids.updates() + asks.updates();
+        if(count == 0) {
+            out.writePosition(start);
+            return;
+        }
+        out.writeInt(start + 4, count);
+        seq++;
+    }
+
+    // appends the published view for a late joiner
+    public void snapshot(Bytes<?> to) {
+        to.writeInt(SNAPSHOT).writeInt(bids.count + asks.count).writeLong(seq);
+        for(int i = 0; i < bids.count; i++)
+            to.writeLong(bids.prices[i]).writeLong(bids.volumes[i]);
+        for(int i = 0; i < asks.count; i++)
+            to.writeLong(asks.prices[i]).writeLong(asks.volumes[i]);
+    }
+
+    public long seq() {
+        return seq;
+    }
+
+    private void entry(long price, long volume) {
+        out.writeLong(price).writeLong(volume);
+    }
+
+    // hands the next message in to handler, false if there is no whole message
+    public static boolean read(Bytes<?> in, DepthHandler handler) {
+        if(in.readRemaining() < HEADER)
+            return false;
+        long at = in.readPosition();
+        int count = in.readInt(at + 4);
+        if(in.readRemaining() < HEADER + (long) count * ENTRY)
+            return false;
+        handler.begin(in.readInt(at), in.readLong(at + 8));
+        in.readSkip(HEADER);
+        for(int i = 0; i < count; i++) {
+            long price = in.readLong();
+            handler.level(price, in.readLong());
+        }
+        return true;
+    }
+}
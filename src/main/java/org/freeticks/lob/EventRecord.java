@@ -0,0 +1,62 @@
+package org.freeticks.lob;
+
+import net.openhft.chronicle.bytes.Bytes;
+import org.freeticks.OrderFields;
+
+// flyweight over an event record in Bytes, as dispatchBatch writes them. records have no times, so it is
+// not a Tick. wrap re-points it without allocating, fields are read from the record on every call
+public final class EventRecord implements OrderFields
+{
+    Bytes<?> bytes;
+    long offset;
+
+    public EventRecord wrap(Bytes<?> bytes, long offset) {
+        this.bytes = bytes;
+        this.offset = offset;
+        return this;
+    }
+
+    // record at the read position of bytes, which moves past it. false if there is no whole record left
+    public boolean read(Bytes<?> bytes) {
+        if(bytes.readRemaining() < EventRing.RECORD_SIZE)
+            return false;
+        wrap(bytes, bytes.readPosition());
+        bytes.readSkip(EventRing.RECORD_SIZE);
+        return true;
+    }
+
+    @Override
+    public int evt() {
+        return bytes.readInt(offset + EventRing.EVT);
+    }
+
+    @Override
+    public long filled() {
+        return bytes.readLong(offset + EventRing.FILLED);
+    }
+
+    @Override
+    public long active() {
+        return bytes.readLong(offset + EventRing.ACTIVE);
+    }
+
+    @Override
+    public long price() {
+        return bytes.readLong(offset + EventRing.PRICE);
+    }
+
+    @Override
+    public long id() {
+        return bytes.readLong(offset + EventRing.ID);
+    }
+
+    @Override
+    public long cookie() {
+        return bytes.readLong(offset + EventRing.COOKIE);
+    }
+
+    @Override
+    public long flags() {
+        return 0;
+    }
+}
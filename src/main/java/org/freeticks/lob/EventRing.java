@@ -0,0 +1,93 @@
+package org.freeticks.lob;
+
+import org.freeticks.Allocator;
+import org.freeticks.UnsafeBuffer;
+
+// bounded lock-free ring of fixed width execution reports from one book to one consumer thread.
+// the book writes a record and publishes it by an ordered store of the tail, the consumer takes
+// everything published so far in one batch and frees it by an ordered store of the head.
+// when the ring is full the book waits for the consumer, reports are never dropped.
+// all counters are off-heap so producer and consumer do not share a written cache line of the object.
+public class EventRing extends UnsafeBuffer {
+    final static int LINE = 64;
+    final static int TAIL = 0;          // next record to write, written by the producer only
+    final static int LIMIT = 8;         // producer copy of head + capacity
+    final static int HEAD = LINE;       // next record to read, written by the consumer only
+    final static int RECORDS = 3 * LINE;
+
+    // record fields, same as the arguments of OffHeapBook.EventHandler
+    final static int EVT        = 0;
+    final static int FILLED     = 8;
+    final static int ACTIVE     = 16;
+    final static int PRICE      = 24;
+    final static int ID         = 32;
+    final static int COOKIE     = 40;
+    final static int RECORD_SIZE = 48;
+
+    final long capacity;
+    final long mask;
+    final long records;
+
+    // capacity is rounded up to a power of two
+    public EventRing(long capacity) {
+        this(capacity, Allocator.DIRECT);
+    }
+
+    public EventRing(long capacity, Allocator allocator) {
+        super(ringSize(capacity) + (RECORDS + RECORD_SIZE - 1) / RECORD_SIZE, RECORD_SIZE, allocator);
+        this.capacity = ringSize(capacity);
+        this.mask = this.capacity - 1;
+        this.records = headAddress + RECORDS;
+        putLong(headAddress + LIMIT, this.capacity);
+    }
+
+    static long ringSize(long capacity) {
+        return capacity <= 1 ? 1 : Long.highestOneBit(capacity - 1) << 1;
+    }
+
+    long record(long seq) {
+        return records + (seq & mask) * RECORD_SIZE;
+    }
+
+    // producer thread only, waits while the ring is full
+    public void offer(int evt, long filled, long active, long price, long id, long cookie) {
+        long seq = getLong(headAddress + TAIL);
+        if(seq >= getLong(headAddress + LIMIT))
+            await(seq);
+        long at = record(seq);
+        putInt(at + EVT, evt);
+        putLong(at + FILLED, filled);
+        putLong(at + ACTIVE, active);
+        putLong(at + PRICE, price);
+        putLong(at + ID, id);
+        putLong(at + COOKIE, cookie);
+        putLongOrdered(headAddress + TAIL, seq + 1);
+    }
+
+    private void await(long seq) {
+        long limit;
+        while((limit = getLongVolatile(headAddress + HEAD) + capacity) <= seq)
+            Thread.yield();
+        putLong(headAddress + LIMIT, limit);
+    }
+
+    // hands up to limit published reports to handler in order and frees their records, returns their number.
+    // rejects come with filled, active and price of 0. consumer thread only
+    public int drain(OffHeapBook.EventHandler handler, int limit) {
+        long head = getLong(headAddress + HEAD);
+        int n = (int) Math.min(getLongVolatile(headAddress + TAIL) - head, limit);
+        for(int i = 0; i < n; i++) {
+            long at = record(head + i);
+            handler.apply(getInt(at + EVT), getLong(at + FILLED), getLong(at + ACTIVE), getLong(at + PRICE),
+                    getLong(at + ID), getLong(at + COOKIE));
+        }
+        if(n > 0)
+            putLongOrdered(headAddress + HEAD, head + n);
+        return n;
+    }
+
+    // true when every report written so far was drained
+    public boolean isEmpty() {
+        return getLongVolatile(headAddress + HEAD) == getLongVolatile(headAddress + TAIL);
+    }
+}
@@ -0,0 +1,97 @@
+package org.freeticks.lob;
+
+import org.freeticks.Allocator;
+import org.freeticks.UnsafeBuffer;
+
+// binary min-heap of (time, id, seq) entries in a flat off-heap array, earliest time on top.
+// out of order part of ExpiryQueue. entries are checked for being live by the owner.
+class ExpiryHeap extends UnsafeBuffer {
+    final static int TIME = 0;
+    final static int ID = 8;
+    final static int SEQ = 16;
+    final static int ENTRY_SIZE = 24;
+
+    final long capacity;
+    long count;
+
+    ExpiryHeap(long capacity, Allocator allocator) {
+        super(capacity, ENTRY_SIZE, allocator);
+        this.capacity = capacity;
+    }
+
+    long entry(long i) {
+        return headAddress + i * ENTRY_SIZE;
+    }
+
+    long time(long i) { return getLong(entry(i) + TIME); }
+
+    long id(long i) { return getLong(entry(i) + ID); }
+
+    long seq(long i) { return getLong(entry(i) + SEQ); }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    // earliest time, Long.MAX_VALUE if empty
+    long top() {
+        return count > 0 ? time(0) : Long.MAX_VALUE;
+    }
+
+    private void put(long i, long time, long id, long seq) {
+        long at = entry(i);
+        putLong(at + TIME, time);
+        putLong(at + ID, id);
+        putLong(at + SEQ, seq);
+    }
+
+    private void copy(long from, long to) {
+        put(to, time(from), id(from), seq(from));
+    }
+
+    void add(long time, long id, long seq) {
+        long i = count++;
+        while(i > 0) {
+            long parent = (i - 1) >>> 1;
+            if(time(parent) <= time)
+                break;
+            copy(parent, i);
+            i = parent;
+        }
+        put(i, time, id, seq);
+    }
+
+    // drops the top entry
+    void poll() {
+        long last = --count;
+        if(last > 0)
+            siftDown(0, time(last), id(last), seq(last));
+    }
+
+    private void siftDown(long i, long time, long id, long seq) {
+        long half = count >>> 1;
+        while(i < half) {
+            long child = 2 * i + 1;
+            if(child + 1 < count && time(child + 1) < time(child))
+                child++;
+            if(time <= time(child))
+                break;
+            copy(child, i);
+            i = child;
+        }
+        put(i, time, id, seq);
+    }
+
+    // moves entry from to position to, used to pack live entries before heapify
+    void move(long from, long to) {
+        if(from != to)
+            copy(from, to);
+    }
+
+    // keeps first n entries and restores heap order over them
+    void heapify(long n) {
+        count = n;
+        for(long i = (n >>> 1) - 1; i >= 0; i--)
+            siftDown(i, time(i), id(i), seq(i));
+    }
+}
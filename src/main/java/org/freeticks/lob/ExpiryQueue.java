@@ -0,0 +1,131 @@
+package org.freeticks.lob;
+
+import org.freeticks.Allocator;
+import org.freeticks.UnsafeBuffer;
+
+// expiring orders as (time, id, seq) entries, earliest time first. goodTill mostly grows with
+// arrival, so entries not earlier than the last one are appended to a sorted ring and cost O(1)
+// to add and take; only out of order entries go to the heap.
+// entries are never removed on cancel: the owner checks seq against the slot when an entry comes out,
+// and when the ring or the heap is full entries that are not live any more are dropped.
+class ExpiryQueue extends UnsafeBuffer {
+    final static int TIME = ExpiryHeap.TIME;
+    final static int ID = ExpiryHeap.ID;
+    final static int SEQ = ExpiryHeap.SEQ;
+    final static int ENTRY_SIZE = ExpiryHeap.ENTRY_SIZE;
+
+    @FunctionalInterface
+    interface Live {
+        boolean test(long id, long seq);
+    }
+
+    final long mask;
+    final ExpiryHeap heap;
+    final Live live;
+    long first;     // ring entries are [first, last)
+    long last;
+
+    ExpiryQueue(long capacity, Live live, Allocator allocator) {
+        super(ringSize(capacity), ENTRY_SIZE, allocator);
+        this.mask = ringSize(capacity) - 1;
+        this.heap = new ExpiryHeap(capacity, allocator);
+        this.live = live;
+    }
+
+    static long ringSize(long capacity) {
+        return capacity <= 1 ? 1 : Long.highestOneBit(capacity - 1) << 1;
+    }
+
+    long entry(long i) {
+        return headAddress + (i & mask) * ENTRY_SIZE;
+    }
+
+    long count() {
+        return last - first + heap.count;
+    }
+
+    void add(long time, long id, long seq) {
+        if(last > first && time < getLong(entry(last - 1) + TIME)) {
+            if(heap.isFull())
+                compactHeap();
+            heap.add(time, id, seq);
+            return;
+        }
+        if(last - first > mask)
+            compactRing();
+        long at = entry(last++);
+        putLong(at + TIME, time);
+        putLong(at + ID, id);
+        putLong(at + SEQ, seq);
+    }
+
+    private boolean ringFirst() {
+        return last > first && getLong(entry(first) + TIME) <= heap.top();
+    }
+
+    // earliest time, Long.MAX_VALUE if empty
+    long top() {
+        return last > first ? Math.min(getLong(entry(first) + TIME), heap.top()) : heap.top();
+    }
+
+    long id() {
+        return ringFirst() ? getLong(entry(first) + ID) : heap.id(0);
+    }
+
+    long seq() {
+        return ringFirst() ? getLong(entry(first) + SEQ) : heap.seq(0);
+    }
+
+    // drops the earliest entry
+    void poll() {
+        if(ringFirst())
+            first++;
+        else
+            heap.poll();
+    }
+
+    // copies ring entries in order and then heap entries to addr, returns address after them
+    long save(long addr) {
+        for(long i = first; i < last; ) {
+            long n = Math.min(last - i, mask + 1 - (i & mask));  // up to the end of the ring buffer
+            copyOut(entry(i) - headAddress, addr, n * ENTRY_SIZE);
+            addr += n * ENTRY_SIZE;
+            i += n;
+        }
+        heap.copyOut(0, addr, heap.count * ENTRY_SIZE);
+        return addr + heap.count * ENTRY_SIZE;
+    }
+
+    // reads back what save wrote into an empty queue, returns address after it
+    long load(long addr, long ringCount, long heapCount) {
+        copyIn(addr, 0, ringCount * ENTRY_SIZE);
+        first = 0;
+        last = ringCount;
+        addr += ringCount * ENTRY_SIZE;
+        heap.copyIn(addr, 0, heapCount * ENTRY_SIZE);
+        heap.count = heapCount;
+        return addr + heapCount * ENTRY_SIZE;
+    }
+
+    // packs live ring entries to the end of the ring keeping their order
+    private void compactRing() {
+        long to = last;
+        for(long i = last - 1; i >= first; i--) {
+            long at = entry(i);
+            if(live.test(getLong(at + ID), getLong(at + SEQ))) {
+                to--;
+                if(to != i)
+                    copyMemory(at, entry(to), ENTRY_SIZE);
+            }
+        }
+        first = to;
+    }
+
+    private void compactHeap() {
+        long n = 0;
+        for(long i = 0; i < heap.count; i++)
+            if(live.test(heap.id(i), heap.seq(i)))
+                heap.move(i, n++);
+        heap.heapify(n);
+    }
+}
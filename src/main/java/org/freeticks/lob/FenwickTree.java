@@ -0,0 +1,71 @@
+package org.freeticks.lob;
+
+import org.freeticks.Allocator;
+import org.freeticks.UnsafeBuffer;
+
+// binary indexed tree of size values off-heap: add and prefix sum in O(log size).
+// word k (from 1) holds the sum of the values k - (k & -k) .. k - 1
+class FenwickTree extends UnsafeBuffer {
+    final long size;
+    final long top;     // highest power of two not above size
+
+    FenwickTree(long size, Allocator allocator) {
+        super(size + 1, Long.BYTES, allocator);
+        this.size = size;
+        this.top = Long.highestOneBit(size);
+    }
+
+    long word(long k) {
+        return getLong(headAddress + k * Long.BYTES);
+    }
+
+    void add(long i, long delta) {
+        for(long k = i + 1; k <= size; k += k & -k) {
+            long addr = headAddress + k * Long.BYTES;
+            putLong(addr, getLong(addr) + delta);
+        }
+    }
+
+    // sum of values 0..i, 0 for i < 0
+    long sum(long i) {
+        long sum = 0;
+        for(long k = Math.min(i + 1, size); k > 0; k -= k & -k)
+            sum += word(k);
+        return sum;
+    }
+
+    // sum of values lo..hi
+    long sum(long lo, long hi) {
+        return sum(hi) - sum(lo - 1);
+    }
+
+    // largest n such that values 0..n-1 sum to at most target, values must not be negative
+    long count(long target) {
+        long n = 0;
+        for(long step = top; step > 0; step >>>= 1) {
+            long k = n + step;
+            if(k <= size && word(k) <= target) {
+                n = k;
+                target -= word(k);
+            }
+        }
+        return n;
+    }
+
+    // sets all values to 0, then load and build make it again from values in O(size)
+    void clear() {
+        setMemory(headAddress, (size + 1) * Long.BYTES, (byte) 0);
+    }
+
+    void load(long i, long value) {
+        putLong(headAddress + (i + 1) * Long.BYTES, value);
+    }
+
+    void build() {
+        for(long k = 1; k <= size; k++) {
+            long parent = k + (k & -k);
+            if(parent <= size)
+                putLong(headAddress + parent * Long.BYTES, word(parent) + word(k));
+        }
+    }
+}
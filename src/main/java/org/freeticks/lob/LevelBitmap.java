@@ -0,0 +1,147 @@
+package org.freeticks.lob;
+
+import net.openhft.chronicle.core.annotation.ForceInline;
+import org.freeticks.Allocator;
+import org.freeticks.UnsafeBuffer;
+
+// three level occupancy bitmap: bit j of a level 1 word is set iff level 0 word j is not zero,
+// and the same for level 2 over level 1, so next/prev set bit costs about one word scan per level
+class LevelBitmap extends UnsafeBuffer {
+    final long bits;
+    final long words0;
+    final long words1;
+    final long words2;
+    final long level1;  // address of level 1 words
+    final long level2;  // address of level 2 words
+
+    LevelBitmap(long bits, Allocator allocator) {
+        super(words(bits) + words(words(bits)) + words(words(words(bits))), Long.BYTES, allocator);
+        this.bits = bits;
+        this.words0 = words(bits);
+        this.words1 = words(words0);
+        this.words2 = words(words1);
+        this.level1 = headAddress + words0 * Long.BYTES;
+        this.level2 = level1 + words1 * Long.BYTES;
+    }
+
+    static long words(long bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    @ForceInline
+    long word0(long w) { return getLong(headAddress + w * Long.BYTES); }
+
+    @ForceInline
+    long word1(long w) { return getLong(level1 + w * Long.BYTES); }
+
+    @ForceInline
+    long word2(long w) { return getLong(level2 + w * Long.BYTES); }
+
+    boolean get(long i) {
+        return (word0(i >>> 6) & (1L << i)) != 0;
+    }
+
+    void set(long i) {
+        long addr = headAddress + (i >>> 6) * Long.BYTES;
+        long old = getLong(addr);
+        putLong(addr, old | (1L << i));
+        if(old != 0)
+            return;     // upper levels already know this word is not empty
+        i >>>= 6;
+        addr = level1 + (i >>> 6) * Long.BYTES;
+        old = getLong(addr);
+        putLong(addr, old | (1L << i));
+        if(old != 0)
+            return;
+        i >>>= 6;
+        addr = level2 + (i >>> 6) * Long.BYTES;
+        putLong(addr, getLong(addr) | (1L << i));
+    }
+
+    void clear(long i) {
+        long addr = headAddress + (i >>> 6) * Long.BYTES;
+        long value = getLong(addr) & ~(1L << i);
+        putLong(addr, value);
+        if(value != 0)
+            return;     // word still not empty, upper levels stay set
+        i >>>= 6;
+        addr = level1 + (i >>> 6) * Long.BYTES;
+        value = getLong(addr) & ~(1L << i);
+        putLong(addr, value);
+        if(value != 0)
+            return;
+        i >>>= 6;
+        addr = level2 + (i >>> 6) * Long.BYTES;
+        putLong(addr, getLong(addr) & ~(1L << i));
+    }
+
+    void clear() {
+        setMemory(headAddress, tailAddress - headAddress, (byte) 0);
+    }
+
+    // first set bit at or after i, -1 if none
+    long next(long i) {
+        if(i >= bits)
+            return -1;
+        if(i < 0)
+            i = 0;
+        long w0 = i >>> 6;
+        long value = word0(w0) & (-1L << i);
+        if(value != 0)
+            return (w0 << 6) + Long.numberOfTrailingZeros(value);
+        long j = w0 + 1;
+        long w1 = j >>> 6;
+        if(w1 >= words1)
+            return -1;
+        value = word1(w1) & (-1L << j);
+        if(value == 0) {
+            long k = w1 + 1;
+            long w2 = k >>> 6;
+            if(w2 >= words2)
+                return -1;
+            value = word2(w2) & (-1L << k);
+            while(value == 0) {
+                if(++w2 >= words2)
+                    return -1;
+                value = word2(w2);
+            }
+            w1 = (w2 << 6) + Long.numberOfTrailingZeros(value);
+            value = word1(w1);
+        }
+        w0 = (w1 << 6) + Long.numberOfTrailingZeros(value);
+        return (w0 << 6) + Long.numberOfTrailingZeros(word0(w0));
+    }
+
+    // last set bit at or before i, -1 if none
+    long prev(long i) {
+        if(i < 0)
+            return -1;
+        if(i >= bits)
+            i = bits - 1;
+        long w0 = i >>> 6;
+        long value = word0(w0) & (-1L >>> (63 - (i & 63)));
+        if(value != 0)
+            return (w0 << 6) + 63 - Long.numberOfLeadingZeros(value);
+        if(w0 == 0)
+            return -1;
+        long j = w0 - 1;
+        long w1 = j >>> 6;
+        value = word1(w1) & (-1L >>> (63 - (j & 63)));
+        if(value == 0) {
+            if(w1 == 0)
+                return -1;
+            long k = w1 - 1;
+            long w2 = k >>> 6;
+            value = word2(w2) & (-1L >>> (63 - (k & 63)));
+            while(value == 0) {
+                if(w2-- == 0)
+                    return -1;
+                value = word2(w2);
+            }
+            w1 = (w2 << 6) + 63 - Long.numberOfLeadingZeros(value);
+            value = word1(w1);
+        }
+        w0 = (w1 << 6) + 63 - Long.numberOfLeadingZeros(value);
+        return (w0 << 6) + 63 - Long.numberOfLeadingZeros(word0(w0));
+    }
+}
@@ -0,0 +1,118 @@
+package org.freeticks.lob;
+
+import net.openhft.affinity.AffinityLock;
+import org.freeticks.OrderEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// consumer thread of a command ring: drains it in batches into handler until closed, so order sources
+// and matching run on different cores and overlap. commands accepted before close are still handled.
+// a command the handler throws on is logged and dropped, the loop goes on with the next one.
+public class MatchingLoop implements Runnable, AutoCloseable
+{
+    protected static final Logger LOG = LoggerFactory.getLogger(MatchingLoop.class);
+    final static int BATCH = 256;
+
+    final CommandRing ring;
+    final CommandRing.CommandHandler handler;
+    final CommandRing.CommandHandler guarded = this::apply;
+    final Thread thread;
+    final boolean pinned;
+    volatile boolean running;
+
+    // pinned binds the thread to its own cpu, needs the affinity library
+    public MatchingLoop(String name, CommandRing ring, CommandRing.CommandHandler handler, boolean pinned) {
+        this.ring = ring;
+        this.handler = handler;
+        this.pinned = pinned;
+        this.thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    // loop dispatching every command of ring to book, symbols are ignored. a command dispatch throws on
+    // goes to the book's error handler as a REJECT
+    public static MatchingLoop of(OffHeapBook book, CommandRing ring) {
+        return new MatchingLoop("book-matcher", ring,
+                (evt, symbol, volume, price, id, cookie, goodTill) -> dispatch(book, evt, volume, price, id, cookie, goodTill),
+                false);
+    }
+
+    static void dispatch(OffHeapBook book, int evt, long volume, long price, long id, long cookie, long goodTill) {
+        try {
+            book.dispatch(evt, volume, price, id, cookie, goodTill);
+        } catch (RuntimeException e) {
+            book.rejectCommand(id, cookie);
+            throw e;
+        }
+    }
+
+    private void apply(int evt, int symbol, long volume, long price, long id, long cookie, long goodTill) {
+        try {
+            handler.apply(evt, symbol, volume, price, id, cookie, goodTill);
+        } catch (RuntimeException e) {
+            LOG.error("{} dropped {} of symbol {} id {} cookie {}", thread.getName(), OrderEvent.nameOf(evt),
+                    symbol, id, cookie, e);
+        }
+    }
+
+    public MatchingLoop start() {
+        running = true;
+        thread.start();
+        return this;
+    }
+
+    public CommandRing ring() {
+        return ring;
+    }
+
+    @Override
+    public void run() {
+        Object lock = pinned ? Pinning.acquire() : null;
+        try {
+            while(running) {
+                if(ring.drain(guarded, BATCH) == 0)
+                    Thread.yield();
+            }
+            while(ring.drain(guarded, BATCH) > 0)
+                ;   // commands accepted before close
+        } finally {
+            if(lock != null)
+                Pinning.release(lock);
+        }
+    }
+
+    // the only place the optional affinity library is used, loaded by the first pinned loop. the loop holds
+    // the lock as an Object, so without the library unpinned loops never touch AffinityLock
+    static final class Pinning {
+        static Object acquire() {
+            return AffinityLock.acquireLock();
+        }
+
+        static void release(Object lock) {
+            ((AffinityLock) lock).release();
+        }
+    }
+
+    // queues command, waiting while the ring is full
+    public void dispatch(int evt, int symbol, long volume, long price, long id, long cookie, long goodTill) {
+        while(!ring.offer(evt, symbol, volume, price, id, cookie, goodTill))
+            Thread.yield();
+    }
+
+    // waits until every command queued so far was handled
+    public void flush() {
+        while(!ring.isEmpty())
+            Thread.yield();
+    }
+
+    // handles queued commands and stops the thread. an interrupt while waiting for it is kept on the caller
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
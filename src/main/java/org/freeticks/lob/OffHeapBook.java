@@ -1,10 +1,20 @@
 package org.freeticks.lob;
 
+import com.koloboke.collect.map.LongLongMap;
+import com.koloboke.collect.map.hash.HashLongLongMaps;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesStore;
 import net.openhft.chronicle.core.annotation.ForceInline;
 import org.freeticks.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.PrimitiveIterator;
 import java.util.Spliterator;
@@ -12,10 +22,8 @@ import java.util.Spliterators;
 import java.util.stream.LongStream;
 import java.util.stream.StreamSupport;
 
+import static java.nio.file.StandardOpenOption.*;
 import static java.util.stream.LongStream.concat;
-import static java.util.stream.StreamSupport.intStream;
-import static java.util.stream.StreamSupport.longStream;
-import static java.util.stream.StreamSupport.stream;
 import static org.freeticks.OrderType.IOC;
 
 public class OffHeapBook extends UnsafeBuffer implements OrderBook
@@ -28,50 +36,101 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
     public static final int ARENA_SIZE = 65536;
     public static final int INDEX_HALF_SIZE = 4096;
 
+    // arena slot, the fields every order uses
     final static int VOLUME     = 0;
     final static int PRICE      = 8;
     final static int NEXT       = 16;
-    final static int COOKIE     = 24;
-    final static int GOODTILL   = 32;
-    final static int ELEMENT_SIZE = 40;
-
+    final static int PREV       = 24;
+    final static int COOKIE     = 32;
+    final static int GOODTILL   = 40;
+    final static int SEQ        = 48;
+    final static int FLAGS      = 56;
+    final static int ELEMENT_SIZE = 64;
+
+    // slot of the same id in extras, for fields only some orders use. they are read when FLAGS has the bit
+    // of their kind, so plain orders never touch extras and a freed slot leaves them as they are
+    final static int OWNER      = 0;    // participant, OWNED
+    final static int TRIGGER    = 8;    // STOP
+    final static int RESERVE    = 16;   // hidden volume of an iceberg, signed as VOLUME, ICEBERG
+    final static int PEAK       = 24;   // volume an iceberg displays at a time, signed as VOLUME, ICEBERG
+    final static int PEG_OFFSET = 32;   // pegged order's distance from its reference price, PEG_MASK
+    final static int PEG_NEXT   = 40;   // links of the peg queue
+    final static int PEG_PREV   = 48;
+    final static int EXTRA_SIZE = 56;
+
+    // self-trade prevention when an order would fill against one of the same owner, see Builder.selfTrade
+    public final static int STP_NONE = 0;
+    public final static int STP_CANCEL_NEWEST = 1;     // the taking order is cancelled
+    public final static int STP_CANCEL_OLDEST = 2;     // the resting order is cancelled, matching goes on
+    public final static int STP_DECREMENT_BOTH = 3;    // both lose the smaller volume, nothing trades
+    final static long NO_OWNER = Long.MIN_VALUE;        // matches no resting owner
+
+    // flags of a slot, each kind in bits of its own and tested through its mask: STOP, ICEBERG and OWNED in
+    // the low nibble, OrderType.PEG_PRIMARY or PEG_MID under PEG_MASK for a pegged order
+    final static long STOP      = 1;    // waits in a trigger ladder, PRICE is the limit
+    final static long ICEBERG   = 2;    // has RESERVE and PEAK
+    final static long OWNED     = 4;    // has OWNER
+    final static long PEG_MASK  = OrderType.PEG_PRIMARY | OrderType.PEG_MID;
+
+    // peg queues
+    final static int BUY_PRIMARY = 0;
+    final static int SELL_PRIMARY = 1;
+    final static int BUY_MID = 2;
+    final static int SELL_MID = 3;
+
+    // command record of dispatchBatch, the event records it writes are laid out as in EventRing
+    final static int C_EVT      = 0;    // int, 4 bytes unused after it
+    final static int C_VOLUME   = 8;
+    final static int C_PRICE    = 16;
+    final static int C_ID       = 24;
+    final static int C_COOKIE   = 32;
+    final static int C_GOODTILL = 40;
+    public final static int COMMAND_SIZE = 48;
+    public final static int EVENT_SIZE = EventRing.RECORD_SIZE;
+    final static int STAGE_EVENTS = 1024;
+
+    // free slots are kept in an intrusive LIFO list threaded through NEXT, starting at head.
+    // slots at or above tail have never been used, so the arena needs no initialization pass.
     long head;
     long tail;
     long capacity;
 
     long nextFreeSlot() {
-        assert (isFree(head));
-        long cap = capacity;
-        long h = head;
-        for (int i = 1; i < cap; i++) {
-            long j = (h + i) % cap;
-            if (isFree(j)) {
-                return j;
-            }
+        long id = head;
+        if(id != -1) {
+            head = next(id);
+            return id;
         }
+        if(tail < capacity)
+            return tail++;
         return -1;
     }
 
-    void setHead(long head) {
-        this.head = head;
-    }
-
     boolean isFree(long id) {
         return volume(id) == 0;
     }
 
-    public void free(long i) {
+    // puts slot i on the free list, the order in it must be off its level and out of the indexes already.
+    // the book's own paths do that, so it is not public
+    void free(long i) {
         setVolume(i, 0);
         setPrice(i, 0);
-        setNext(i, -1);
         setCookie(i, 0);
         setGoodTill(i, 0);
+        setSeq(i, 0);
+        setFlags(i, 0);
+        setNext(i, head);
+        head = i;
     }
 
     long field(long i, long offset){
         return headAddress + i* ELEMENT_SIZE + offset;
     }
 
+    long extra(long i, long offset) {
+        return extraAddress + i*EXTRA_SIZE + offset;
+    }
+
     public long price(long i) {
         return getLong(field(i, PRICE));
     }
@@ -87,6 +146,11 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
         putLong(field(id, NEXT), value + 1);
     }
 
+    public long prev(long id) { return getLong(field(id, PREV)) - 1; }
+    void setPrev(long id, long value) {
+        putLong(field(id, PREV), value + 1);
+    }
+
     public long goodTill(long id) {
         return getLong(field(id, GOODTILL));
     }
@@ -94,13 +158,95 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
         putLong(field(id, GOODTILL), value);
     }
 
+    // placement number of an expiring order, 0 otherwise
+    long seq(long id) {
+        return getLong(field(id, SEQ));
+    }
+    void setSeq(long id, long value) {
+        putLong(field(id, SEQ), value);
+    }
+
     public long cookie(long id) {
         return getLong(field(id, COOKIE));
     }
+
     void setCookie(long id, long value) {
         putLong(field(id, COOKIE), value);
     }
 
+    // 0 for none
+    public long owner(long id) {
+        return (flags(id) & OWNED) != 0 ? extras.getLong(extra(id, OWNER)) : 0;
+    }
+    void setOwner(long id, long value) {
+        if(value != 0) {
+            extras.putLong(extra(id, OWNER), value);
+            setFlags(id, flags(id) | OWNED);
+        } else
+            setFlags(id, flags(id) & ~OWNED);
+    }
+
+    public long flags(long id) {
+        return getLong(field(id, FLAGS));
+    }
+    void setFlags(long id, long value) {
+        putLong(field(id, FLAGS), value);
+    }
+    boolean isStop(long id) {
+        return (flags(id) & STOP) != 0;
+    }
+    boolean isPegged(long id) {
+        return (flags(id) & PEG_MASK) != 0;
+    }
+    // OrderType.PEG_PRIMARY or PEG_MID
+    long pegType(long id) {
+        return flags(id) & PEG_MASK;
+    }
+
+    // trigger price of a stop, 0 for other orders
+    public long trigger(long id) {
+        return isStop(id) ? extras.getLong(extra(id, TRIGGER)) : 0;
+    }
+    void setTrigger(long id, long value) {
+        extras.putLong(extra(id, TRIGGER), value);
+    }
+
+    // volume of an iceberg not displayed yet, 0 for other orders
+    public long reserve(long id) {
+        return (flags(id) & ICEBERG) != 0 ? extras.getLong(extra(id, RESERVE)) : 0;
+    }
+    void setReserve(long id, long value) {
+        extras.putLong(extra(id, RESERVE), value);
+    }
+
+    public long peak(long id) {
+        return (flags(id) & ICEBERG) != 0 ? extras.getLong(extra(id, PEAK)) : 0;
+    }
+    void setPeak(long id, long value) {
+        extras.putLong(extra(id, PEAK), value);
+    }
+
+    public long pegOffset(long id) {
+        return isPegged(id) ? extras.getLong(extra(id, PEG_OFFSET)) : 0;
+    }
+    void setPegOffset(long id, long value) {
+        extras.putLong(extra(id, PEG_OFFSET), value);
+    }
+
+    long pegNext(long id) {
+        return extras.getLong(extra(id, PEG_NEXT));
+    }
+    void setPegNext(long id, long value) {
+        extras.putLong(extra(id, PEG_NEXT), value);
+    }
+
+    long pegPrev(long id) {
+        return extras.getLong(extra(id, PEG_PREV));
+    }
+    void setPegPrev(long id, long value) {
+        extras.putLong(extra(id, PEG_PREV), value);
+    }
+
 
     @FunctionalInterface
     public interface EventHandler {
@@ -121,6 +267,17 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
         private int capacity = 65536;
         private long minprice = -100000;
         private long maxprice = 100000;
+        private long window;
+        private boolean cookies;
+        private boolean cumulative;
+        private boolean stops;
+        private int selfTrade;
+        private BookJournal journal;
+        private Allocator allocator = Allocator.DIRECT;
+        private EventRing events;
+        private DepthPublisher depth;
+        private OrderFeed orders;
+        private TopOfBook top;
         private EventHandler handler;
         private ErrorHandler error;
 
@@ -134,14 +291,112 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
             return this;
         }
 
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
         public Builder range(long minprice, long maxprice) {
             this.minprice = minprice;
             this.maxprice = maxprice;
             return this;
         }
 
+        // ladder covers only that many ticks around the touch, prices outside it still can be placed
+        public Builder window(long ticks) {
+            this.window = ticks;
+            return this;
+        }
+
+        // keep cookie -> id map of resting orders for cancelByCookie and amendByCookie
+        public Builder indexCookies() {
+            this.cookies = true;
+            return this;
+        }
+
+        // keep cumulative volume and notional of the ladder, sweep queries take O(log window) instead of
+        // walking the levels, every level volume change costs two tree updates
+        public Builder cumulative() {
+            this.cumulative = true;
+            return this;
+        }
+
+        // accept stop and stop-limit orders, kept in trigger ladders of the same window as the book's
+        public Builder stops() {
+            this.stops = true;
+            return this;
+        }
+
+        // what happens when an order would fill against one of the same owner, STP_CANCEL_NEWEST,
+        // STP_CANCEL_OLDEST or STP_DECREMENT_BOTH. orders of owner 0 are not checked
+        public Builder selfTrade(int mode) {
+            this.selfTrade = mode;
+            return this;
+        }
+
+        // write every command to journal before applying it, in the form of dispatch whether it came
+        // through dispatch or one of the methods placing, amending, cancelling or expiring orders
+        public Builder journal(BookJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        // memory of arena, ladder and expiry queue, e.g. MappedAllocator to keep them in files
+        public Builder allocator(Allocator allocator) {
+            this.allocator = allocator;
+            return this;
+        }
+
+        // write events and rejects to ring for a consumer thread instead of calling the handlers
+        public Builder events(EventRing events) {
+            this.events = events;
+            return this;
+        }
+
+        // report level changes to publisher and publish after every command, dispatched or not, or batch
+        public Builder depth(DepthPublisher publisher) {
+            this.depth = publisher;
+            return this;
+        }
+
+        // write best prices and volumes to the slot after every command or batch that changed them, dispatched
+        // or given to the book's methods
+        public Builder top(TopOfBook top) {
+            this.top = top;
+            return this;
+        }
+
+        // send events to feed instead of onEvent's handler and flush it after every command
+        public Builder orders(OrderFeed feed) {
+            this.orders = feed;
+            this.handler = feed;
+            return this;
+        }
+
         public OffHeapBook build() {
-            return new OffHeapBook(capacity, minprice, maxprice, handler, error);
+            return new OffHeapBook(this);
+        }
+
+        // builder of the same options, restore changes its copy and leaves the caller's as it was
+        Builder copy() {
+            Builder copy = new Builder();
+            copy.capacity = capacity;
+            copy.minprice = minprice;
+            copy.maxprice = maxprice;
+            copy.window = window;
+            copy.cookies = cookies;
+            copy.cumulative = cumulative;
+            copy.stops = stops;
+            copy.selfTrade = selfTrade;
+            copy.journal = journal;
+            copy.allocator = allocator;
+            copy.events = events;
+            copy.depth = depth;
+            copy.orders = orders;
+            copy.top = top;
+            copy.handler = handler;
+            copy.error = error;
+            return copy;
         }
     }
 
@@ -149,35 +404,109 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
         final static int VOLUME = 0;
         final static int HEAD = 8;
         final static int TAIL = 16;
-        final static int ELEMENT_SIZE = 24;
+        final static int HIDDEN = 24;   // reserve of the icebergs at the level, VOLUME is what is displayed
+        final static int PEGGED = 32;   // part of VOLUME that is pegged orders
+        final static int ELEMENT_SIZE = 40;
 
+        // the ladder is a window of prices [min, max] that slides with the touch,
+        // levels outside of it are kept sorted in overflow
         long min;
         long max;
+        final long window;
+
+        // not empty levels of the window, kept in sync by open and close
+        final LevelBitmap occupied;
+        final OverflowLevels overflow;
+
+        // absolute volume and price * absolute volume of the window levels, null unless the builder asked.
+        // bids are below asks, so a range from the touch away sums one side only
+        FenwickTree volumes;
+        FenwickTree notionals;
 
-        OffHeapLevels(long min, long max) {
-            super(max-min+1, ELEMENT_SIZE);
+        // result of the last sweep
+        long sweptPrice;
+        long sweptVolume;
+        long sweptCost;
+
+        OffHeapLevels(long min, long window, Allocator allocator) {
+            super(window, ELEMENT_SIZE, allocator);
             this.min = min;
-            this.max = max;
+            this.max = min+window-1;
+            this.window = window;
+            this.occupied = new LevelBitmap(window, allocator);
+            this.overflow = new OverflowLevels(MAX_PRICE_LEVELS, ELEMENT_SIZE, allocator);
+        }
+
+        @ForceInline
+        boolean inWindow(long price) {
+            return price>=min && price<=max;
         }
 
         public boolean contains(long price) {
-            if(price<min || price>max)
-                return false;
-            return head(price) == -1;
+            if(inWindow(price))
+                return occupied.get(price-min);
+            return overflow.contains(price);
+        }
+
+        // price can get a level without running out of overflow records
+        boolean accepts(long price) {
+            return inWindow(price) || !overflow.isFull() || overflow.contains(price);
+        }
+
+        // lowest not empty price at or above price, NO_ASK if none
+        long ceiling(long price) {
+            long result = NO_ASK;
+            if(price<=max) {
+                long i = occupied.next(Math.max(price, min)-min);
+                if(i!=-1)
+                    result = min+i;
+            }
+            if(overflow.count>0)
+                result = Math.min(result, overflow.ceiling(price));
+            return result;
+        }
+
+        // highest not empty price at or below price, NO_BID if none
+        long floor(long price) {
+            long result = NO_BID;
+            if(price>=min) {
+                long i = occupied.prev(Math.min(price, max)-min);
+                if(i!=-1)
+                    result = min+i;
+            }
+            if(overflow.count>0)
+                result = Math.max(result, overflow.floor(price));
+            return result;
         }
 
         @ForceInline
         long field(long price, long offset) {
-            return headAddress + (price-min) * ELEMENT_SIZE + offset;
+            if(inWindow(price))
+                return headAddress + (price-min) * ELEMENT_SIZE + offset;
+            return overflow.level(price) + offset;
         }
 
         @ForceInline
         public long volume(long price) { return getLong(field(price, VOLUME)); }
         @ForceInline
         void setVolume(long price, long value) {
-            putLong(field(price, VOLUME), value);
+            long addr = field(price, VOLUME);
+            if(volumes != null && inWindow(price)) {
+                long delta = Math.abs(value) - Math.abs(getLong(addr));
+                volumes.add(price-min, delta);
+                notionals.add(price-min, delta*price);
+            }
+            putLong(addr, value);
+            if(depth != null && this == index)
+                depth.touch(price, value);
         }
 
+        public long hidden(long price) { return getLong(field(price, HIDDEN)); }
+        void setHidden(long price, long value) { putLong(field(price, HIDDEN), value); }
+
+        long pegged(long price) { return getLong(field(price, PEGGED)); }
+        void setPegged(long price, long value) { putLong(field(price, PEGGED), value); }
+
         @ForceInline
         public long head(long price) { return getLong(field(price, HEAD)) -1; }
         @ForceInline
@@ -192,32 +521,302 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
             putLong(field(i, TAIL), value + 1) ;
         }
 
+        // slide the window to have center in the middle: levels leaving the window spill to overflow,
+        // overflow levels inside the new window move in. false if overflow has no room for the spill.
+        boolean recenter(long center) {
+            long from = center - window/2;
+            long to = from + window - 1;
+            long shift = from - min;
+            if(shift == 0)
+                return true;
+
+            long spill = 0;
+            for(long i = occupied.next(0); i != -1; i = occupied.next(i+1)) {
+                long price = min+i;
+                if(price<from || price>to)
+                    spill++;
+            }
+            if(overflow.count + spill > overflow.capacity)
+                return false;
+
+            for(long i = occupied.next(0); i != -1; i = occupied.next(i+1)) {
+                long price = min+i;
+                if(price<from || price>to)
+                    copyOut(i*ELEMENT_SIZE, overflow.insert(price), ELEMENT_SIZE);
+            }
+
+            long bytes = window*ELEMENT_SIZE;
+            long moved = Math.abs(shift) < window ? (window - Math.abs(shift))*ELEMENT_SIZE : 0;
+            if(shift > 0) {
+                copyMemory(headAddress + bytes - moved, headAddress, moved);
+                setMemory(headAddress + moved, bytes - moved, (byte) 0);
+            } else {
+                copyMemory(headAddress, headAddress + bytes - moved, moved);
+                setMemory(headAddress, bytes - moved, (byte) 0);
+            }
+            min = from;
+            max = to;
+
+            long first = overflow.find(from);
+            if(first < 0)
+                first = -first - 1;
+            long last = first;
+            for(; last < overflow.count && overflow.price(last) <= to; last++) {
+                long price = overflow.price(last);
+                copyIn(overflow.record(last) + OverflowLevels.LEVEL, (price-min)*ELEMENT_SIZE, ELEMENT_SIZE);
+            }
+            overflow.remove(first, last - first);
+
+            occupied.clear();
+            for(long i = 0; i < window; i++)
+                if(getLong(headAddress + i*ELEMENT_SIZE + HEAD) != 0)
+                    occupied.set(i);
+            if(volumes != null)
+                sum();
+            return true;
+        }
+
+        // ladder window, its bitmap and overflow levels copied to addr, returns the address after them
+        long save(long addr) {
+            copyOut(0, addr, byteSize());
+            addr += byteSize();
+            occupied.copyOut(0, addr, occupied.byteSize());
+            addr += occupied.byteSize();
+            long bytes = overflow.count*overflow.recordSize;
+            overflow.copyOut(0, addr, bytes);
+            return addr + bytes;
+        }
+
+        long saved() {
+            return byteSize() + occupied.byteSize() + overflow.count*overflow.recordSize;
+        }
+
+        // reverse of save, count is the number of overflow levels saved
+        long load(long addr, long count) {
+            copyIn(addr, 0, byteSize());
+            addr += byteSize();
+            occupied.copyIn(addr, 0, occupied.byteSize());
+            addr += occupied.byteSize();
+            overflow.count = count;
+            long bytes = count*overflow.recordSize;
+            overflow.copyIn(addr, 0, bytes);
+            if(volumes != null)
+                sum();
+            return addr + bytes;
+        }
+
+        void cumulative(Allocator allocator) {
+            volumes = new FenwickTree(window, allocator);
+            notionals = new FenwickTree(window, allocator);
+            sum();
+        }
+
+        // trees from the window levels in O(window)
+        void sum() {
+            volumes.clear();
+            notionals.clear();
+            for(long i = occupied.next(0); i != -1; i = occupied.next(i+1)) {
+                long volume = Math.abs(getLong(headAddress + i*ELEMENT_SIZE + VOLUME));
+                volumes.load(i, volume);
+                notionals.load(i, volume*(min+i));
+            }
+            volumes.build();
+            notionals.build();
+        }
+
+        // absolute volume of the levels in [lo, hi], which has to be on one side of the spread
+        long depth(long lo, long hi) {
+            long sum = 0;
+            if(volumes == null) {
+                for(long p = ceiling(lo); p <= hi; p = ceiling(p+1))
+                    sum += Math.abs(volume(p));
+                return sum;
+            }
+            long a = Math.max(lo, min);
+            long b = Math.min(hi, max);
+            if(a <= b)
+                sum += volumes.sum(a-min, b-min);
+            long i = overflow.find(lo);
+            for(i = i < 0 ? -i-1 : i; i < overflow.count && overflow.price(i) <= hi; i++)
+                sum += Math.abs(overflow.levelField(i, VOLUME));
+            return sum;
+        }
+
+        // at least need volume rests between from and to, the walk from the touch from stops once it is there
+        boolean holds(long from, long to, long need) {
+            if(volumes != null)
+                return depth(Math.min(from, to), Math.max(from, to)) >= need;
+            long sum = 0;
+            if(from <= to) {
+                for(long p = ceiling(from); p <= to && sum < need; p = ceiling(p+1))
+                    sum += Math.abs(volume(p));
+            } else {
+                for(long p = floor(from); p >= to && sum < need; p = floor(p-1))
+                    sum += Math.abs(volume(p));
+            }
+            return sum >= need;
+        }
+
+        // takes up to need volume from one side starting at its touch from, up the asks for dir 1, down the bids
+        // for dir -1. leaves the last price reached, the volume taken and its cost in swept*
+        void sweep(long from, int dir, long need) {
+            sweptPrice = dir > 0 ? NO_ASK : NO_BID;
+            sweptVolume = 0;
+            sweptCost = 0;
+            if(need <= 0 || from == NO_ASK || from == NO_BID)
+                return;
+            if(volumes == null) {
+                for(long p = from; need > 0 && p != NO_ASK && p != NO_BID; p = dir > 0 ? ceiling(p+1) : floor(p-1))
+                    need = take(p, Math.abs(volume(p)), need);
+                return;
+            }
+            long i = overflow.find(from);
+            if(dir > 0) {
+                // overflow below the window, the window, overflow above it
+                for(i = i < 0 ? -i-1 : i; need > 0 && i < overflow.count && overflow.price(i) < min; i++)
+                    need = take(overflow.price(i), Math.abs(overflow.levelField(i, VOLUME)), need);
+                if(need > 0 && from <= max)
+                    need = sweepAsks(Math.max(from, min)-min, need);
+                for(; need > 0 && i < overflow.count; i++)
+                    need = take(overflow.price(i), Math.abs(overflow.levelField(i, VOLUME)), need);
+            } else {
+                for(i = i < 0 ? -i-2 : i; need > 0 && i >= 0 && overflow.price(i) > max; i--)
+                    need = take(overflow.price(i), Math.abs(overflow.levelField(i, VOLUME)), need);
+                if(need > 0 && from >= min)
+                    need = sweepBids(Math.min(from, max)-min, need);
+                for(; need > 0 && i >= 0; i--)
+                    need = take(overflow.price(i), Math.abs(overflow.levelField(i, VOLUME)), need);
+            }
+        }
+
+        private long take(long price, long volume, long need) {
+            long taken = Math.min(volume, need);
+            sweptPrice = price;
+            sweptVolume += taken;
+            sweptCost += taken*price;
+            return need - taken;
+        }
+
+        // window levels from index a up, returns the volume still needed
+        private long sweepAsks(long a, long need) {
+            long b = window - 1;
+            long total = volumes.sum(a, b);
+            if(total == 0)
+                return need;
+            if(total < need) {
+                sweptPrice = min + occupied.prev(b);
+                sweptVolume += total;
+                sweptCost += notionals.sum(a, b);
+                return need - total;
+            }
+            long k = volumes.count(volumes.sum(a-1) + need - 1);    // first level where the sum reaches need
+            long before = volumes.sum(a, k-1);
+            sweptPrice = min + k;
+            sweptVolume += need;
+            sweptCost += notionals.sum(a, k-1) + (need - before)*sweptPrice;
+            return 0;
+        }
+
+        // window levels from index b down, returns the volume still needed
+        private long sweepBids(long b, long need) {
+            long total = volumes.sum(b);
+            if(total == 0)
+                return need;
+            if(total < need) {
+                sweptPrice = min + occupied.next(0);
+                sweptVolume += total;
+                sweptCost += notionals.sum(b);
+                return need - total;
+            }
+            long k = volumes.count(total - need);       // last level where the sum from b down reaches need
+            long after = volumes.sum(k+1, b);
+            sweptPrice = min + k;
+            sweptVolume += need;
+            sweptCost += notionals.sum(k+1, b) + (need - after)*sweptPrice;
+            return 0;
+        }
+
+        // first order at empty price
+        void open(long price, long id) {
+            if(inWindow(price))
+                occupied.set(price-min);
+            else
+                overflow.insert(price);
+            setHead(price, id);
+            setTail(price, id);
+        }
+
+        // last order left the price
+        void close(long price) {
+            if(inWindow(price)) {
+                setHead(price, -1);
+                setTail(price, -1);
+                occupied.clear(price-min);
+            } else
+                overflow.remove(price);
+        }
+
+        // append order to the tail of the queue at price
+        void link(long price, long id, long volume) {
+            if(!contains(price)) {
+                open(price, id);
+                setVolume(price, volume);
+            } else {
+                long tail = tail(price);
+                setNext(tail, id);
+                setPrev(id, tail);
+                setTail(price, id);
+                setVolume(price, volume(price) + volume);
+            }
+        }
+
+        // remove order from any position of the queue at price
+        void unlink(long price, long id, long volume) {
+            setVolume(price, volume(price) - volume);
+            long prev = prev(id);
+            long next = next(id);
+            if(prev == -1) {
+                if(next == -1)
+                    close(price);
+                else {
+                    setHead(price, next);
+                    setPrev(next, -1);
+                }
+            } else {
+                setNext(prev, next);
+                if(next == -1)
+                    setTail(price, prev);
+                else
+                    setPrev(next, prev);
+            }
+        }
+
         void free(long price) {
-            long id;
-            while((id = head(price))!=-1) {
+            long id = head(price);
+            while(id!=-1) {
+                long next = next(id);
                 OffHeapBook.this.free(id);
+                size--;
+                id = next;
             }
 
             setVolume(price, 0);
-            //setNext(price, 0);
-            //setPrev(price, 0);
-            setHead(price, -1);
-            setTail(price, -1);
+            close(price);
         }
 
         void keep(int n){
             long price;
             if(bestAsk!=NO_ASK) {
-                for (price = bestAsk + n + 1; price <= highPrice; price++) {
+                for (price = ceiling(bestAsk + n + 1); price != NO_ASK; price = ceiling(price + 1)) {
                     free(price);
                 }
-                highPrice = Math.min(highPrice, bestAsk + n);
+                highPrice = floor(highPrice);
             }
             if(bestBid!=NO_BID) {
-                for (price = bestBid - n - 1; price >= lowPrice; price--) {
+                for (price = floor(bestBid - n - 1); price != NO_BID; price = floor(price - 1)) {
                     free(price);
                 }
-                lowPrice = Math.max(lowPrice, bestBid - n);
+                lowPrice = ceiling(lowPrice);
             }
         }
 
@@ -250,6 +849,9 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
 
 
     private OffHeapLevels index;
+    // slots of the fields only some orders use, see OWNER
+    private final UnsafeBuffer extras;
+    private final long extraAddress;
 
     private long bestBid;
     private long bestAsk;
@@ -257,15 +859,128 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
     private long highPrice;
     private long lowPrice;
 
+    // expiring orders by goodTill, an entry is live while its seq matches the slot
+    private ExpiryQueue expiry;
+    private long seq;
+
+    // resting orders by cookie, null unless the builder asked for it
+    private LongLongMap cookies;
+
+    private BookJournal journal;
+
+    // waiting stops by trigger price, null unless the builder asked. buyStop is the lowest buy trigger and
+    // sellStop the highest sell trigger, so a trade checks them with two compares
+    private OffHeapLevels buyStops;
+    private OffHeapLevels sellStops;
+    private long buyStop = NO_ASK;
+    private long sellStop = NO_BID;
+    // last matchLevel filled something, self-trade prevention alone does not trigger stops
+    private boolean levelTraded;
+    // stops triggered by the command being handled, threaded through NEXT, entered before it returns
+    private long released = -1;
+    private long releasedTail = -1;
+
+    // resting pegged orders by queue (BUY_PRIMARY ...) in the order they were placed, threaded through
+    // PEG_NEXT. pegBid and pegAsk are the reference prices they were priced from
+    private final long[] pegHead = {-1, -1, -1, -1};
+    private final long[] pegTail = {-1, -1, -1, -1};
+    private long pegs;
+    private long pegBid = NO_BID;
+    private long pegAsk = NO_ASK;
+
+    private int selfTrade;
+    private long owner;     // of the orders placed next
+
+    private EventRing events;
+    private DepthPublisher depth;
+    private OrderFeed orders;
+    private TopOfBook top;
     private EventHandler handler;
     private ErrorHandler error;
     private int size;
 
+    // output of dispatchBatch while it runs, null otherwise. events are staged off-heap by plain stores
+    // and appended to it in bulk, checked writes to Bytes field by field cost more than the matching
+    private Bytes<?> batch;
+    private Stage stage;
+
+    // events of a batch as event ring records, up to STAGE_EVENTS of them
+    static final class Stage extends UnsafeBuffer {
+        final BytesStore<?, ByteBuffer> staged = BytesStore.wrap((ByteBuffer) bytes);
+        long at = headAddress;
+
+        Stage() {
+            super(STAGE_EVENTS, EVENT_SIZE);
+        }
+
+        boolean isFull() {
+            return at == tailAddress;
+        }
+
+        void add(int evt, long filled, long active, long price, long id, long cookie) {
+            long at = this.at;
+            putInt(at + EventRing.EVT, evt);
+            putInt(at + EventRing.EVT + 4, 0);
+            putLong(at + EventRing.FILLED, filled);
+            putLong(at + EventRing.ACTIVE, active);
+            putLong(at + EventRing.PRICE, price);
+            putLong(at + EventRing.ID, id);
+            putLong(at + EventRing.COOKIE, cookie);
+            this.at = at + EVENT_SIZE;
+        }
+
+        // appends the staged events to out
+        void flush(Bytes<?> out) {
+            out.write(staged, 0L, at - headAddress);
+            at = headAddress;
+        }
+    }
+
+    public OffHeapBook(Builder params) {
+        this(params.capacity, params.minprice, params.maxprice,
+                params.window > 0 ? params.window : params.maxprice - params.minprice + 1,
+                params.allocator, params.handler, params.error);
+        if(params.cookies)
+            cookies = HashLongLongMaps.newMutableMap(params.capacity);
+        if(params.cumulative)
+            index.cumulative(params.allocator);
+        if(params.stops) {
+            buyStops = new OffHeapLevels(index.min, index.window, params.allocator);
+            sellStops = new OffHeapLevels(index.min, index.window, params.allocator);
+        }
+        selfTrade = params.selfTrade;
+        journal = params.journal;
+        events = params.events;
+        depth = params.depth;
+        if(depth != null)
+            depth.attach(this);
+        orders = params.orders;
+        top = params.top;
+        if(top != null)
+            top.attach(this);
+    }
+
     public OffHeapBook(long capacity, long minprice, long maxprice, EventHandler handler, ErrorHandler error) {
-        super(capacity, ELEMENT_SIZE);
+        this(capacity, minprice, maxprice, maxprice - minprice + 1, handler, error);
+    }
+
+    // ladder of window ticks, initially in the middle of [minprice, maxprice]
+    public OffHeapBook(long capacity, long minprice, long maxprice, long window, EventHandler handler, ErrorHandler error) {
+        this(capacity, minprice, maxprice, window, Allocator.DIRECT, handler, error);
+    }
+
+    // as above with arena, ladder and expiry queue in memory from allocator
+    public OffHeapBook(long capacity, long minprice, long maxprice, long window, Allocator allocator,
+                       EventHandler handler, ErrorHandler error) {
+        super(capacity, ELEMENT_SIZE, allocator);
         this.capacity = capacity;
-        head = tail = 0;
-        index = new OffHeapLevels(minprice, maxprice);
+        extras = new UnsafeBuffer(capacity, EXTRA_SIZE, allocator);
+        extraAddress = extras.address(0);
+        head = -1;
+        tail = 0;
+        long min = window >= maxprice - minprice + 1 ? minprice : (minprice + maxprice)/2 - window/2;
+        index = new OffHeapLevels(min, window, allocator);
+        expiry = new ExpiryQueue(2*capacity, (id, seq) -> seq(id) == seq, allocator);
         this.handler = handler;
         this.error = error;
         lowPrice = bestAsk = NO_ASK;
@@ -278,14 +993,34 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
 
     @Override
     public LongStream bids() {
-        return bestBid==NO_BID ? LongStream.empty() : LongStream.range(0, bestBid-lowPrice+1).map(i->bestBid-i)
-                .filter(price->!index.contains(price));
+        return prices(bestBid, -1);
     }
 
     @Override
     public LongStream asks() {
-        return bestAsk==NO_ASK ? LongStream.empty() : LongStream.range(bestAsk, highPrice+1)
-                .filter(price->!index.contains(price));
+        return prices(bestAsk, 1);
+    }
+
+    // not empty prices from start away from the touch
+    private LongStream prices(long start, int dir) {
+        return StreamSupport.longStream(
+                Spliterators.spliteratorUnknownSize(
+                        new PrimitiveIterator.OfLong() {
+                            long price = start;
+                            @Override
+                            public boolean hasNext() {
+                                return price!=NO_BID && price!=NO_ASK;
+                            }
+
+                            @Override
+                            public long nextLong() {
+                                long result = price;
+                                price = dir>0 ? index.ceiling(price+1) : index.floor(price-1);
+                                return result;
+                            }
+                        },
+                        Spliterator.ORDERED),
+                false);
     }
 
     @Override
@@ -311,85 +1046,747 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
     }
 
 
-    public Order get(long id) {
-        return new OrderMessage(OrderEvent.PLACE, 0, volume(id), price(id), id, cookie(id));
+    @Override
+    public LevelCursor levelCursor() {
+        return new LevelWalk();
     }
 
-    public long bid() { return bestBid; }
-    public long bidVolume() {return levels().volume(bestBid);}
+    @Override
+    public OrderCursor orderCursor() {
+        return new OrderWalk();
+    }
 
-    public long ask() {
-        return bestAsk;
+    // nearest not empty level behind price on the side of dir, NO_BID or NO_ASK if none
+    long levelAfter(long price, int dir) {
+        return dir > 0 ? index.ceiling(price + 1) : index.floor(price - 1);
     }
-    public long askVolume() {return levels().volume(bestAsk);}
 
-    public long head(long price) {
-        return index.head(price);
+    long levelVolume(long price) {
+        return index.volume(price);
     }
 
-    public long low() { return lowPrice; }
-    public long high() { return highPrice; }
+    // walks the ladder and the overflow the same way prices() does
+    final class LevelWalk implements LevelCursor {
+        long price = NO_BID;
+        long start;
+        int dir;
+        boolean started = true;
 
-    public boolean hasBids() { return bestBid!=NO_BID; }
-    public boolean hasAsks() { return bestAsk!=NO_ASK; }
+        @Override
+        public LevelCursor bids() {
+            start = bestBid;
+            dir = -1;
+            started = false;
+            return this;
+        }
 
-    public int size() {
-        return size;
+        @Override
+        public LevelCursor asks() {
+            start = bestAsk;
+            dir = 1;
+            started = false;
+            return this;
+        }
+
+        @Override
+        public boolean next() {
+            if(!started) {
+                price = start;
+                started = true;
+            } else if(price != NO_BID && price != NO_ASK)
+                price = dir > 0 ? index.ceiling(price + 1) : index.floor(price - 1);
+            return price != NO_BID && price != NO_ASK;
+        }
+
+        @Override
+        public long price() {
+            return price;
+        }
+
+        @Override
+        public long volume() {
+            return index.volume(price);
+        }
     }
 
-    public long place(long volume, long price, long cookie, long goodTill) {
+    final class OrderWalk implements OrderCursor {
+        long id = -1;
+        long head = -1;
 
-        //if(size>4*at.capacity()/5) {
-        //    LOG.info("capacity exhausted");
-        //}
+        @Override
+        public OrderCursor at(long price) {
+            head = head(price);
+            id = -1;
+            return this;
+        }
 
-        long nextId = nextFreeSlot();
+        @Override
+        public boolean next() {
+            if(head != -1) {
+                id = head;
+                head = -1;
+            } else if(id != -1)
+                id = OffHeapBook.this.next(id);
+            return id != -1;
+        }
 
-        if(nextId < 0)
-        {
-            if(error!=null)
-                error.apply(OrderEvent.REJECT, -1, cookie);
-            return -1;
+        @Override
+        public long id() {
+            return id;
         }
 
-        long id = head;
+        @Override
+        public long price() {
+            return OffHeapBook.this.price(id);
+        }
 
-        int dir = volume>0?1:-1;
+        @Override
+        public long volume() {
+            return OffHeapBook.this.volume(id);
+        }
 
-        volume = match(volume, price, id, cookie);
+        @Override
+        public long cookie() {
+            return OffHeapBook.this.cookie(id);
+        }
+    }
 
-        if(goodTill == IOC || volume == 0)
-            return id;      // ensures volume(id)==0
+    // copy of the order in slot id, view() reads it without garbage
+    public Order get(long id) {
+        return new OrderMessage(OrderEvent.PLACE, 0, volume(id), price(id), id, cookie(id));
+    }
 
-        // new order can update high/low prices
-        lowPrice = Math.min(lowPrice, price);
-        highPrice = Math.max(highPrice, price);
+    public OrderView view() {
+        return new OrderView();
+    }
 
-        setPrice(id, price);
-        setVolume(id, volume);
-        setCookie(id, cookie);
-        setHead(nextId);
-        setGoodTill(id, goodTill);
+    // flyweight over an arena slot, wrap re-points it without allocating. reads the slot as it is now,
+    // the book keeps no times, so it is not a Tick
+    public final class OrderView implements OrderFields {
+        long id = -1;
 
-        if(index.contains(price)) {
-            index.setHead(price, id);
-        }else {
-            setNext(index.tail(price), id);
+        public OrderView wrap(long id) {
+            this.id = id;
+            return this;
         }
-        index.setTail(price, id);
-        index.setVolume(price, index.volume(price) + volume);
 
-        //linkLevels(price);
+        @Override
+        public int evt() {
+            return OrderEvent.PLACE;
+        }
 
-        size++;
-        if(dir>0)
-            bestBid = Math.max(bestBid, price);
-        else
-            bestAsk = Math.min(bestAsk, price);
+        @Override
+        public long id() {
+            return id;
+        }
 
-        if(handler!=null) // PLACED
-            handler.apply(OrderEvent.PLACE, 0, volume, price, id, cookie);
-        return id;
+        @Override
+        public long cookie() {
+            return OffHeapBook.this.cookie(id);
+        }
+
+        @Override
+        public long flags() {
+            return OffHeapBook.this.flags(id);
+        }
+
+        @Override
+        public long price() {
+            return OffHeapBook.this.price(id);
+        }
+
+        @Override
+        public long active() {
+            return volume(id);
+        }
+
+        @Override
+        public long filled() {
+            return 0;
+        }
+    }
+
+    public long bid() { return bestBid; }
+    public long bidVolume() {return levels().volume(bestBid);}
+
+    public long ask() {
+        return bestAsk;
+    }
+    public long askVolume() {return levels().volume(bestAsk);}
+
+    public long head(long price) {
+        return index.head(price);
+    }
+
+    // reserve of the icebergs resting at price, not counted in the level's volume
+    public long hiddenVolume(long price) {
+        return index.hidden(price);
+    }
+
+    public long low() { return lowPrice; }
+    public long high() { return highPrice; }
+
+    public long sweepCost(long volume) {
+        index.sweep(volume > 0 ? bestAsk : bestBid, volume > 0 ? 1 : -1, Math.abs(volume));
+        return index.sweptCost;
+    }
+
+    public long priceForVolume(long volume) {
+        index.sweep(volume > 0 ? bestAsk : bestBid, volume > 0 ? 1 : -1, Math.abs(volume));
+        if(index.sweptVolume < Math.abs(volume))
+            return volume > 0 ? NO_ASK : NO_BID;
+        return index.sweptPrice;
+    }
+
+    public long volumeWithin(long ticks) {
+        if(ticks > 0)
+            return hasAsks() ? -index.depth(bestAsk, bestAsk + ticks - 1) : 0;
+        if(ticks < 0)
+            return hasBids() ? index.depth(bestBid + ticks + 1, bestBid) : 0;
+        return 0;
+    }
+
+    public boolean hasBids() { return bestBid!=NO_BID; }
+    public boolean hasAsks() { return bestAsk!=NO_ASK; }
+
+    public int size() {
+        return size;
+    }
+
+    // owner of the orders placed from now on, 0 for none. self-trade prevention keeps orders of one owner
+    // from filling each other
+    public void placeOwner(long owner) {
+        if(owner == NO_OWNER)
+            throw new IllegalArgumentException("owner");
+        if(journal != null)
+            journal.write(OrderEvent.OWNER, 0, 0, owner, 0, 0);
+        this.owner = owner;
+    }
+
+    public long placeOwner() {
+        return owner;
+    }
+
+    public long place(long volume, long price, long cookie, long goodTill) {
+        if(journal != null)
+            journal.write(OrderEvent.PLACE, volume, price, -1, cookie, goodTill);
+        long id = limit(volume, price, cookie, goodTill);
+        published();
+        return id;
+    }
+
+    private long limit(long volume, long price, long cookie, long goodTill) {
+        //if(size>4*at.capacity()/5) {
+        //    LOG.info("capacity exhausted");
+        //}
+
+        long id = index.accepts(price) ? nextFreeSlot() : -1;
+
+        if(id < 0)
+        {
+            reject(OrderEvent.REJECT, -1, cookie);
+            return -1;
+        }
+
+        setOwner(id, owner);
+        enter(id, volume, price, cookie, goodTill, 0);
+        settle();
+        return id;      // volume(id)==0 unless it rests
+    }
+
+    // order of OrderType.FOK, MIN_QTY or POST_ONLY type, checked from the level volumes before it takes
+    // anything, so a rejected order leaves nothing to undo. FOK fills all of volume now or is rejected,
+    // MIN_QTY fills at least minQty now or is rejected and the rest of it is as goodTill says, POST_ONLY is
+    // rejected if it would take. the reserve of icebergs is not counted, it can only make a check fail that
+    // matching would have passed. the check does not look at owners, self-trade prevention can leave a FOK
+    // or MIN_QTY order with less. other types place as usual. returns id, -1 if rejected
+    public long place(long volume, long price, long cookie, long goodTill, int type, long minQty) {
+        if(journal != null)
+            journal.write(type == OrderType.FOK ? OrderEvent.PLACE_FOK : type == OrderType.MIN_QTY ? OrderEvent.PLACE_MIN_QTY
+                    : type == OrderType.POST_ONLY ? OrderEvent.PLACE_POST_ONLY : OrderEvent.PLACE,
+                    volume, price, type == OrderType.MIN_QTY ? minQty : -1, cookie, goodTill);
+        long id = conditional(volume, price, cookie, goodTill, type, minQty);
+        published();
+        return id;
+    }
+
+    private long conditional(long volume, long price, long cookie, long goodTill, int type, long minQty) {
+        switch(type) {
+            case OrderType.FOK:
+                if(!fillable(volume, price, Math.abs(volume))) {
+                    reject(OrderEvent.REJECT_FOK, -1, cookie);
+                    return -1;
+                }
+                goodTill = IOC;
+                break;
+            case OrderType.MIN_QTY:
+                if(!fillable(volume, price, Math.min(Math.abs(minQty), Math.abs(volume)))) {
+                    reject(OrderEvent.REJECT_MIN_QTY, -1, cookie);
+                    return -1;
+                }
+                break;
+            case OrderType.POST_ONLY:
+                if(volume > 0 ? price >= bestAsk : price <= bestBid) {
+                    reject(OrderEvent.REJECT_POST_ONLY, -1, cookie);
+                    return -1;
+                }
+                break;
+        }
+        return limit(volume, price, cookie, goodTill);
+    }
+
+    // need of volume's side can fill now at prices up to price for a buy, down to it for a sell
+    private boolean fillable(long volume, long price, long need) {
+        if(volume > 0)
+            return bestAsk <= price && index.holds(bestAsk, price, need);
+        return bestBid >= price && index.holds(bestBid, price, need);
+    }
+
+    // iceberg order: matches with all of volume, what is left rests showing peak of it at a time. when the
+    // shown part fills, the next peak of the reserve goes to the tail of the level in the same slot.
+    // returns id, -1 if rejected
+    public long placeIceberg(long volume, long peak, long price, long cookie, long goodTill) {
+        if(journal != null)
+            journal.write(OrderEvent.ICEBERG, volume, price, peak, cookie, goodTill);
+        long id = iceberg(volume, peak, price, cookie, goodTill);
+        published();
+        return id;
+    }
+
+    private long iceberg(long volume, long peak, long price, long cookie, long goodTill) {
+        long id = peak != 0 && index.accepts(price) ? nextFreeSlot() : -1;
+        if(id < 0) {
+            reject(OrderEvent.REJECT, -1, cookie);
+            return -1;
+        }
+        setOwner(id, owner);
+        enter(id, volume, price, cookie, goodTill, volume > 0 ? Math.abs(peak) : -Math.abs(peak));
+        settle();
+        return id;
+    }
+
+    // pegged order of type OrderType.PEG_PRIMARY or PEG_MID resting offset ticks from its reference price,
+    // offset not above 0 for a buy and not below 0 for a sell. a pegged order never takes: it is priced
+    // where nothing crosses it and repriced in place when the reference moves, losing its place in the queue.
+    // rejected if the side has no reference price yet, returns id, -1 if rejected
+    public long placePeg(long volume, int type, long offset, long cookie, long goodTill) {
+        if(journal != null)
+            journal.write(OrderEvent.PEG, volume, offset, type, cookie, goodTill);
+        long id = peg(volume, type, offset, cookie, goodTill);
+        published();
+        return id;
+    }
+
+    private long peg(long volume, int type, long offset, long cookie, long goodTill) {
+        repeg();
+        long price = pegPrice(volume, type, offset);
+        long id = volume != 0 && (volume > 0 ? offset <= 0 : offset >= 0)
+                && price != NO_BID && price != NO_ASK && index.accepts(price) ? nextFreeSlot() : -1;
+        if(id < 0) {
+            reject(OrderEvent.REJECT, -1, cookie);
+            return -1;
+        }
+        if(!rest(id, volume, price)) {
+            free(id);
+            reject(OrderEvent.REJECT, -1, cookie);
+            return -1;
+        }
+        setOwner(id, owner);
+        setFlags(id, flags(id) | type);
+        setPegOffset(id, offset);
+        setCookie(id, cookie);
+        setGoodTill(id, goodTill);
+        index.setPegged(price, index.pegged(price) + volume);
+        int q = queue(volume, type);
+        setPegNext(id, -1);
+        setPegPrev(id, pegTail[q]);
+        if(pegTail[q] == -1)
+            pegHead[q] = id;
+        else
+            setPegNext(pegTail[q], id);
+        pegTail[q] = id;
+        pegs++;
+        if(goodTill > 0)
+            schedule(id, goodTill);
+        if(cookies != null)
+            cookies.put(cookie, id);
+        size++;
+        emit(OrderEvent.PLACE, 0, volume, price, id, cookie);
+        return id;
+    }
+
+    private static int queue(long volume, long type) {
+        return (type == OrderType.PEG_MID ? BUY_MID : BUY_PRIMARY) + (volume > 0 ? 0 : 1);
+    }
+
+    // price of a pegged order from pegBid and pegAsk, NO_BID or NO_ASK if its reference is missing.
+    // mid pegs keep off the middle, a buy below a sell, so no two pegs cross
+    private long pegPrice(long volume, long type, long offset) {
+        if(type == OrderType.PEG_PRIMARY) {
+            long reference = volume > 0 ? pegBid : pegAsk;
+            return reference == NO_BID || reference == NO_ASK ? reference : reference + offset;
+        }
+        if(type != OrderType.PEG_MID || pegBid == NO_BID || pegAsk == NO_ASK)
+            return volume > 0 ? NO_BID : NO_ASK;
+        return volume > 0 ? Math.floorDiv(pegBid + pegAsk - 1, 2) + offset : -Math.floorDiv(-pegBid - pegAsk - 1, 2) + offset;
+    }
+
+    // best bid and ask of orders that are not pegged. levels of pegs only are skipped, at most the mid
+    // peg level and the levels of primary pegs priced from the reference before
+    private long referenceBid() {
+        long price = bestBid;
+        while(price != NO_BID && index.volume(price) == index.pegged(price))
+            price = index.floor(price - 1);
+        return price;
+    }
+
+    private long referenceAsk() {
+        long price = bestAsk;
+        while(price != NO_ASK && index.volume(price) == index.pegged(price))
+            price = index.ceiling(price + 1);
+        return price;
+    }
+
+    // reprices the pegs whose reference moved since they were priced, in one pass over their queues.
+    // pegs moving away from the other side go first, so the book is never crossed on the way
+    private void repeg() {
+        long bid = referenceBid();
+        long ask = referenceAsk();
+        boolean bidMoved = bid != pegBid, askMoved = ask != pegAsk;
+        if(!bidMoved && !askMoved)
+            return;
+        pegBid = bid;
+        pegAsk = ask;
+        if(bidMoved)
+            reprice(BUY_PRIMARY);
+        if(askMoved)
+            reprice(SELL_PRIMARY);
+        long first = pegHead[BUY_MID];
+        if(first != -1 && price(first) < pegPrice(volume(first), OrderType.PEG_MID, pegOffset(first))) {
+            reprice(SELL_MID);
+            reprice(BUY_MID);
+        } else {
+            reprice(BUY_MID);
+            reprice(SELL_MID);
+        }
+    }
+
+    private void reprice(int queue) {
+        for(long id = pegHead[queue], next; id != -1; id = next) {
+            next = pegNext(id);
+            long volume = volume(id);
+            long price = price(id);
+            long to = pegPrice(volume, pegType(id), pegOffset(id));
+            if(to == price || to == NO_BID || to == NO_ASK || !index.accepts(to))
+                continue;       // without a reference it stays where it is
+            index.setPegged(price, index.pegged(price) - volume);
+            index.unlink(price, id, volume);
+            if(!index.contains(price))
+                emptied(price);
+            if(!rest(id, volume, to)) {
+                dequeue(id);
+                if(cookies != null)
+                    cookies.remove(cookie(id), id);
+                size--;
+                unrested(id, volume, to, cookie(id));
+                continue;
+            }
+            index.setPegged(to, index.pegged(to) + volume);
+            emit(OrderEvent.AMEND, 0, volume, to, id, cookie(id));
+        }
+    }
+
+    // takes pegged order id off its queue and its volume off the pegged volume of its level
+    private void unpeg(long id) {
+        long price = price(id);
+        index.setPegged(price, index.pegged(price) - volume(id));
+        dequeue(id);
+    }
+
+    private void dequeue(long id) {
+        int q = queue(volume(id), pegType(id));
+        long prev = pegPrev(id);
+        long next = pegNext(id);
+        if(prev == -1)
+            pegHead[q] = next;
+        else
+            setPegNext(prev, next);
+        if(next == -1)
+            pegTail[q] = prev;
+        else
+            setPegPrev(next, prev);
+        pegs--;
+    }
+
+    // matches order in slot id and rests what is left of it unless it is immediate or cancel. an iceberg
+    // rests peak of it and keeps the rest in reserve, peak is 0 for other orders. returns the volume an
+    // immediate or cancel order leaves untraded
+    private long enter(long id, long volume, long price, long cookie, long goodTill, long peak) {
+        volume = match(volume, price, id, cookie);
+
+        if(goodTill == IOC || volume == 0) {
+            free(id);
+            return volume;
+        }
+
+        long reserve = 0;
+        if(peak != 0 && Math.abs(volume) > Math.abs(peak)) {
+            reserve = volume - peak;
+            volume = peak;
+        }
+        if(!rest(id, volume, price)) {
+            unrested(id, volume + reserve, price, cookie);
+            return 0;
+        }
+        setCookie(id, cookie);
+        setGoodTill(id, goodTill);
+        if(reserve != 0) {
+            setPeak(id, peak);
+            setReserve(id, reserve);
+            setFlags(id, flags(id) | ICEBERG);
+            index.setHidden(price, index.hidden(price) + reserve);     // the level exists only after rest
+        }
+        if(goodTill > 0 && seq(id) == 0)
+            schedule(id, goodTill);     // a released stop keeps the schedule it had while waiting
+        if(cookies != null)
+            cookies.put(cookie, id);
+        size++;
+
+        emit(OrderEvent.PLACE, 0, volume, price, id, cookie);
+        return 0;
+    }
+
+    // stop order of volume that waits off the book until a trade at or through trigger, at or above it for a buy,
+    // at or below it for a sell. it then enters as a limit order at limit, or as a market order if limit is NO_ASK
+    // for a buy or NO_BID for a sell. trades before it was placed do not trigger it. returns id, -1 if rejected
+    public long placeStop(long volume, long trigger, long limit, long cookie, long goodTill) {
+        if(journal != null)
+            journal.write(OrderEvent.STOP, volume, trigger, limit, cookie, goodTill);
+        long id = stop(volume, trigger, limit, cookie, goodTill);
+        published();
+        return id;
+    }
+
+    private long stop(long volume, long trigger, long limit, long cookie, long goodTill) {
+        OffHeapLevels stops = volume > 0 ? buyStops : sellStops;
+        boolean market = limit == (volume > 0 ? NO_ASK : NO_BID);
+        long id = volume != 0 && stops != null && stops.accepts(trigger) && (market || index.accepts(limit))
+                ? nextFreeSlot() : -1;
+        if(id < 0) {
+            reject(OrderEvent.REJECT, -1, cookie);
+            return -1;
+        }
+        setOwner(id, owner);
+        setVolume(id, volume);
+        setPrice(id, limit);
+        setTrigger(id, trigger);
+        setFlags(id, flags(id) | STOP);
+        setCookie(id, cookie);
+        setGoodTill(id, goodTill);
+        setNext(id, -1);
+        setPrev(id, -1);
+        setSeq(id, ++seq);      // release order, and the expiry entry if it has one
+        stops.link(trigger, id, volume);
+        if(volume > 0)
+            buyStop = Math.min(buyStop, trigger);
+        else
+            sellStop = Math.max(sellStop, trigger);
+        if(goodTill > 0)
+            expiry.add(goodTill, id, seq);
+        if(cookies != null)
+            cookies.put(cookie, id);
+        emit(OrderEvent.STOP, 0, volume, trigger, id, cookie);
+        return id;
+    }
+
+    // trades from low to high traded through the triggers of waiting stops: the trigger levels close and
+    // their stops go to the released list in the order they were placed, by seq, buys and sells alike. the
+    // work is the stops released times the levels they came from, the stops that stay are not looked at
+    private void triggered(long low, long high) {
+        long first = -1;
+        while(buyStop <= high) {
+            long trigger = buyStop;
+            first = merge(first, release(buyStops, trigger));
+            buyStop = buyStops.ceiling(trigger);
+        }
+        while(sellStop >= low) {
+            long trigger = sellStop;
+            first = merge(first, release(sellStops, trigger));
+            sellStop = sellStops.floor(trigger);
+        }
+        if(first == -1)
+            return;
+        if(released == -1)
+            released = first;
+        else
+            setNext(releasedTail, first);
+        long last = first;
+        for(long id = next(first); id != -1; id = next(id))
+            last = id;
+        releasedTail = last;
+    }
+
+    // closes the level of stops at trigger, returns its queue
+    private long release(OffHeapLevels stops, long trigger) {
+        long first = stops.head(trigger);
+        stops.setVolume(trigger, 0);
+        stops.close(trigger);
+        return first;
+    }
+
+    // one list of two lists of stops threaded through NEXT, both in seq order
+    private long merge(long a, long b) {
+        if(a == -1 || b == -1)
+            return a == -1 ? b : a;
+        long first = seq(a) < seq(b) ? a : b;
+        long last = first;
+        if(first == a)
+            a = next(a);
+        else
+            b = next(b);
+        while(a != -1 && b != -1) {
+            long id = seq(a) < seq(b) ? a : b;
+            setNext(last, id);
+            last = id;
+            if(id == a)
+                a = next(a);
+            else
+                b = next(b);
+        }
+        setNext(last, a != -1 ? a : b);
+        return first;
+    }
+
+    // after an order traded or moved: stops it triggered enter, then pegs follow the references they leave
+    private void settle() {
+        release();
+        if(pegs != 0)
+            repeg();
+    }
+
+    // enters the released stops in turn, their trades append to the list the stops they trigger, so
+    // a cascade is a loop over the list and not a recursion
+    private void release() {
+        while(released != -1) {
+            long id = released;
+            released = next(id);
+            if(released == -1)
+                releasedTail = -1;
+            long volume = volume(id);
+            long limit = price(id);
+            long cookie = cookie(id);
+            long trigger = trigger(id);
+            setFlags(id, flags(id) & ~STOP);
+            emit(OrderEvent.TRIGGER, 0, volume, trigger, id, cookie);
+            if(cookies != null)
+                cookies.remove(cookie, id);     // enter puts it again if the order rests
+            boolean market = limit == (volume > 0 ? NO_ASK : NO_BID);
+            if(!market && !index.accepts(limit)) {
+                free(id);
+                reject(OrderEvent.REJECT, id, cookie);
+                continue;
+            }
+            long left = enter(id, volume, limit, cookie, market ? IOC : goodTill(id), 0);
+            if(left != 0)
+                emit(OrderEvent.CANCEL, 0, left, market ? trigger : limit, id, cookie);
+        }
+    }
+
+    private long cancelStop(long id) {
+        long volume = volume(id);
+        long trigger = trigger(id);
+        long cookie = cookie(id);
+        OffHeapLevels stops = volume > 0 ? buyStops : sellStops;
+        stops.unlink(trigger, id, volume);
+        if(!stops.contains(trigger)) {
+            if(volume > 0 && trigger == buyStop)
+                buyStop = stops.ceiling(trigger);
+            else if(volume < 0 && trigger == sellStop)
+                sellStop = stops.floor(trigger);
+        }
+        if(cookies != null)
+            cookies.remove(cookie, id);
+        free(id);
+        emit(OrderEvent.CANCEL, 0, volume, trigger, id, cookie);
+        return stops.volume(trigger);
+    }
+
+    // appends order to the tail of the queue at price, new order can update best and high/low prices.
+    // false if price is outside the window and the overflow has no room for its level: matching before
+    // can slide the window after the price was checked, so it is checked again here
+    private boolean rest(long id, long volume, long price) {
+        if(!index.inWindow(price) && (volume>0 ? price>bestBid : price<bestAsk))
+            index.recenter(price);  // touch moved out of the window, otherwise the level goes to overflow
+        if(!index.accepts(price))
+            return false;
+        lowPrice = Math.min(lowPrice, price);
+        highPrice = Math.max(highPrice, price);
+
+        setPrice(id, price);
+        setVolume(id, volume);
+        setNext(id, -1);
+        setPrev(id, -1);
+        index.link(price, id, volume);
+
+        if(volume>0)
+            bestBid = Math.max(bestBid, price);
+        else
+            bestAsk = Math.min(bestAsk, price);
+        return true;
+    }
+
+    // what is left of order id after matching has no level to rest at: freed and reported as cancelled
+    private void unrested(long id, long volume, long price, long cookie) {
+        free(id);
+        emit(OrderEvent.CANCEL, 0, volume, price, id, cookie);
+    }
+
+    // changes resting order to newVolume (same side) at newPrice. volume reduced at the same price keeps
+    // queue priority, otherwise the order moves to the tail of newPrice queue, matching first if it crosses.
+    // returns id, -1 if rejected
+    public long amend(long id, long newVolume, long newPrice) {
+        if(journal != null)
+            journal.write(OrderEvent.AMEND, newVolume, newPrice, id, 0, 0);
+        id = modify(id, newVolume, newPrice);
+        settle();
+        published();
+        return id;
+    }
+
+    private long modify(long id, long newVolume, long newPrice) {
+        long volume = volume(id);
+        long cookie = cookie(id);
+        if(isFree(id) || newVolume == 0 || (newVolume ^ volume) < 0 || !index.accepts(newPrice)
+                || isStop(id) || isPegged(id) || reserve(id) != 0) {
+            reject(OrderEvent.REJECT_AMEND, id, cookie);
+            return -1;
+        }
+        long price = price(id);
+        if(newPrice == price && Math.abs(newVolume) <= Math.abs(volume)) {
+            setVolume(id, newVolume);
+            index.setVolume(price, index.volume(price) - volume + newVolume);
+        } else {
+            index.unlink(price, id, volume);
+            if(!index.contains(price))
+                emptied(price);
+            newVolume = match(newVolume, newPrice, id, cookie);
+            if(newVolume == 0) {
+                if(cookies != null)
+                    cookies.remove(cookie, id);
+                free(id);
+                size--;
+                return id;
+            }
+            if(!rest(id, newVolume, newPrice)) {
+                if(cookies != null)
+                    cookies.remove(cookie, id);
+                size--;
+                unrested(id, newVolume, newPrice, cookie);
+                return id;
+            }
+        }
+        emit(OrderEvent.AMEND, 0, newVolume, newPrice, id, cookie);
+        return id;
     }
 
     public void selfcheck() {
@@ -405,203 +1802,617 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
         }
     }
 
-    /*
-    void linkLevels(long price){
-        long p;
-        for(p = price-1; p>=low; p--) {
-            index.setNext(p, price);
-            if(!index.contains(p))
-            {
-                index.setPrev(price, p);
-                break;
-            }
-        }
-
-        for(p = price+1; p<=high; p++) {
-            index.setPrev(p, price);
-            if(!index.contains(p)) {
-                index.setNext(price, p);
-                break;
-            }
-        }
-    }*/
-
-
+    // returns signed volume left to the active order, levelTraded tells if anything filled at the level
     private long matchLevel(long price, long headId, long activeVolume, long activeId, long activeCookie){
+        levelTraded = false;
+        int activeDir = 1;
+        if(activeVolume < 0) {
+            activeVolume = -activeVolume;
+            activeDir = -1;
+        }
+        int passiveDir = -activeDir;
+        long self = selfTrade == STP_NONE || owner(activeId) == 0 ? NO_OWNER : owner(activeId);
         while (headId != -1) {
             // TODO: expire here?
-            long passiveVolume = volume(headId);
-            int activeDir = 1;
-            if(activeVolume < 0) {
-                activeVolume = -activeVolume;
-                activeDir = -1;
-            }
-            int passiveDir = 1;
-            if(passiveVolume < 0) {
-                passiveVolume = -passiveVolume;
-                passiveDir = -1;
+            if (self != NO_OWNER && owner(headId) == self) {
+                if (selfTrade == STP_CANCEL_NEWEST) {
+                    emit(OrderEvent.CANCEL, 0, activeVolume*activeDir, price, activeId, activeCookie);
+                    return 0;
+                }
+                long whole = (volume(headId) + reserve(headId))*passiveDir;
+                long taken = selfTrade == STP_CANCEL_OLDEST ? whole : Math.min(activeVolume, whole);
+                headId = decrement(price, headId, taken*passiveDir);
+                if (selfTrade == STP_DECREMENT_BOTH) {
+                    activeVolume -= taken;
+                    if (activeVolume == 0) {
+                        emit(OrderEvent.CANCEL, 0, taken*activeDir, price, activeId, activeCookie);
+                        return 0;
+                    }
+                }
+                continue;
             }
+            long passiveVolume = volume(headId)*passiveDir;
             long filled = Math.min(activeVolume, passiveVolume);
             long nextId;
             passiveVolume-=filled;
             long passiveCookie = cookie(headId);
-            if (passiveVolume==0) {
-                nextId = pop(headId);
+            boolean done = passiveVolume==0;
+            if (done && reserve(headId) == 0) {
+                nextId = pop(headId);   // takes the order's whole volume off the level
+            }else if (done) {
+                nextId = replenish(price, headId);
+                done = false;
             }else {
                 nextId = headId;
                 setVolume(headId, passiveVolume*passiveDir);
+                index.setVolume(price, index.volume(price) - filled*passiveDir);
+                if (isPegged(headId))
+                    index.setPegged(price, index.pegged(price) - filled*passiveDir);
             }
-            index.setVolume(price, index.volume(price) - filled*passiveDir);
             activeVolume -= filled;
+            levelTraded = true;
 
-            if (handler != null) // FILL
-            {
-                handler.apply(passiveVolume==0 ? OrderEvent.FILL:OrderEvent.PARTFILL, filled*passiveDir, 0, price, headId, passiveCookie);   // active=0 means that volume was passive
-                handler.apply(activeVolume==0 ? OrderEvent.FILL:OrderEvent.PARTFILL, filled*activeDir, filled*activeDir, price, activeId, activeCookie);
-            }
+            emit(done ? OrderEvent.FILL:OrderEvent.PARTFILL, filled*passiveDir, 0, price, headId, passiveCookie);   // active=0 means that volume was passive
+            emit(activeVolume==0 ? OrderEvent.FILL:OrderEvent.PARTFILL, filled*activeDir, filled*activeDir, price, activeId, activeCookie);
+            if (passiveVolume==0 && !done)
+                emit(OrderEvent.REPLENISH, 0, volume(headId), price, headId, passiveCookie);
             headId = nextId;
             if(activeVolume == 0)
                 break;
         }
-        return activeVolume;
+        return activeVolume*activeDir;
     }
 
-    public long match(long activeVolume, long price, long activeId, long activeCookie) {
-        long dir = activeVolume > 0 ? 1:-1;
+    // self-trade prevention takes by off resting order id at price without a trade, from the reserve of an
+    // iceberg first so its shown part keeps its place. returns the order to match next
+    private long decrement(long price, long id, long by) {
+        long volume = volume(id);
+        long reserve = reserve(id);
+        long cookie = cookie(id);
+        if(by == volume + reserve) {
+            if(reserve != 0)
+                index.setHidden(price, index.hidden(price) - reserve);
+            long next = pop(id);
+            emit(OrderEvent.CANCEL, 0, volume, price, id, cookie);
+            return next;
+        }
+        long fromReserve = volume > 0 ? Math.min(by, reserve) : Math.max(by, reserve);
+        if(fromReserve != 0) {
+            setReserve(id, reserve - fromReserve);
+            index.setHidden(price, index.hidden(price) - fromReserve);
+        }
+        long fromShown = by - fromReserve;
+        if(fromShown != 0) {
+            setVolume(id, volume - fromShown);
+            index.setVolume(price, index.volume(price) - fromShown);
+            if(isPegged(id))
+                index.setPegged(price, index.pegged(price) - fromShown);
+        }
+        emit(OrderEvent.AMEND, 0, volume - fromShown, price, id, cookie);
+        return id;
+    }
 
-        // this will loop hard to find nextFreeSlot not empty price with some at to set best bid/best ask
-        if(dir>0) {
-            for(;;) {
-                if(bestAsk>highPrice){
-                    bestAsk = NO_ASK;
-                    highPrice = bestBid;
-                    if (bestBid == NO_BID) {
-                        lowPrice = NO_ASK;
-                    }
-                    break;
-                }
-                if(activeVolume!=0) {
-                    long headId = index.head(bestAsk);
-                    if (headId != -1 && bestAsk <= price) {
-                        activeVolume = matchLevel(bestAsk, headId, activeVolume, activeId, activeCookie);
-                    }
+    // shown part of iceberg id at price filled: shows the next peak of its reserve at the tail of the level,
+    // keeping the slot. returns the order to match after it, id itself when it is alone at the level
+    private long replenish(long price, long id) {
+        long volume = volume(id);
+        long reserve = reserve(id);
+        long clip = volume > 0 ? Math.min(peak(id), reserve) : Math.max(peak(id), reserve);
+        long next = next(id);
+        setReserve(id, reserve - clip);
+        index.setHidden(price, index.hidden(price) - clip);
+        if(next != -1 || prev(id) != -1) {
+            index.unlink(price, id, volume);
+            setNext(id, -1);
+            setPrev(id, -1);
+            index.link(price, id, clip);
+        } else
+            index.setVolume(price, index.volume(price) - volume + clip);
+        setVolume(id, clip);
+        return next != -1 ? next : id;
+    }
+
+    private long match(long activeVolume, long price, long activeId, long activeCookie) {
+        // levels emptied by the active order are skipped with bitmap scans, not tick by tick. stops trigger
+        // from the first to the last level that traded, levels where self-trade prevention only took volume
+        // off resting orders do not count
+        if(activeVolume>0) {
+            long first = NO_ASK, last = NO_BID;
+            while(activeVolume!=0 && bestAsk!=NO_ASK && bestAsk<=price) {
+                long p = bestAsk;
+                activeVolume = matchLevel(p, index.head(p), activeVolume, activeId, activeCookie);
+                if(levelTraded) {
+                    first = Math.min(first, p);
+                    last = p;
                 }
-                if(!index.contains(bestAsk))
-                    break;  // some volume left
-                bestAsk++;
+                if(!index.contains(p))
+                    emptied(p);
             }
+            if(last != NO_BID)
+                triggered(first, last);
         }else{
-            for(;;) {
-                if(bestBid<lowPrice) {
-                    bestBid = NO_BID;
-                    lowPrice = bestAsk;
-                    if (bestAsk == NO_ASK) {
-                        highPrice = NO_BID;
-                    }
-                    break;
-                }
-                if(activeVolume!=0) {
-                    long headId = index.head(bestBid);
-                    if (headId != -1 && bestBid >= price) {
-                        activeVolume = matchLevel(bestBid, headId, activeVolume, activeId, activeCookie);
-                    }
+            long first = NO_BID, last = NO_ASK;
+            while(activeVolume!=0 && bestBid!=NO_BID && bestBid>=price) {
+                long p = bestBid;
+                activeVolume = matchLevel(p, index.head(p), activeVolume, activeId, activeCookie);
+                if(levelTraded) {
+                    first = Math.max(first, p);
+                    last = p;
                 }
-                if(!index.contains(bestBid))
-                    break;  // some volume left
-                bestBid--;
+                if(!index.contains(p))
+                    emptied(p);
             }
+            if(last != NO_ASK)
+                triggered(last, first);
         }
         return activeVolume;
     }
 
+    // level at price became empty: repair best and boundary prices from the bitmap. a best price left in
+    // overflow when the window can not follow it is still served from there, every new level checks for room
+    private void emptied(long price) {
+        if(lowPrice == highPrice) {
+            lowPrice = bestAsk = NO_ASK;
+            highPrice = bestBid = NO_BID;
+        } else if(price == bestBid) {
+            bestBid = index.floor(price);
+            if(price == highPrice)
+                highPrice = bestBid;
+            if(bestBid != NO_BID && !index.inWindow(bestBid) && !index.recenter(bestBid))
+                LOG.warn("no overflow room to recenter on bid {}, it stays in overflow", bestBid);
+        } else if(price == bestAsk) {
+            bestAsk = index.ceiling(price);
+            if(price == lowPrice)
+                lowPrice = bestAsk;
+            if(bestAsk != NO_ASK && !index.inWindow(bestAsk) && !index.recenter(bestAsk))
+                LOG.warn("no overflow room to recenter on ask {}, it stays in overflow", bestAsk);
+        }
+        if(price == highPrice)
+            highPrice = index.floor(price);
+        else if(price == lowPrice)
+            lowPrice = index.ceiling(price);
+    }
+
     private long pop(long id) {
-        long price = price(id);
         long next = next(id);
-        index.setHead(price, next);
-        if(next==-1)
-            index.setTail(price, -1);
-        index.setVolume(price, index.volume(price) - volume(id));
+        if(cookies != null)
+            cookies.remove(cookie(id), id);    // cookie may already belong to a newer order
+        if(isPegged(id))
+            unpeg(id);
+        index.unlink(price(id), id, volume(id));
         free(id);
         size--;
         return next;
     }
 
+    // cancels orders with goodTill before time, work is proportional to the entries taken off the heap
     public void expire(long time) {
-        for(long price=lowPrice; price<=highPrice; price++) {
-            long id = index.head(price);
-            while(id!=-1) {
-                long gt = goodTill(id);
-                if (gt > 0 && gt < time) {
-                    this.cancel(id, cookie(id));
-                    id = index.head(id);
-                } else {
-                    id = next(id);
-                }
-            }
+        if(journal != null)
+            journal.write(OrderEvent.EXPIRE, 0, 0, -1, 0, time);
+        expired(time);
+        published();
+    }
+
+    private void expired(long time) {
+        while(expiry.top() < time) {
+            long id = expiry.id();
+            long seq = expiry.seq();
+            expiry.poll();
+            if(seq(id) == seq)
+                remove(id, cookie(id));
         }
     }
 
+    // end of a command: the depth feed and the top slot get the book's changes and the order feed is
+    // flushed, a batch does it once at its end
+    private void published() {
+        if(batch != null)
+            return;
+        if(depth != null)
+            depth.publish();
+        if(top != null)
+            top.publish();
+        if(orders != null)
+            orders.flush();
+    }
+
+    private void schedule(long id, long goodTill) {
+        setSeq(id, ++seq);
+        expiry.add(goodTill, id, seq);
+    }
+
 
+    // EXPIRE takes the time in goodTill, STOP the trigger in price and the limit in id, ICEBERG the peak in id,
+    // PEG the offset in price and the OrderType of the peg in id, PLACE_MIN_QTY the minimum quantity in id,
+    // OWNER the owner of the orders placed next in id
     public long dispatch(int evt, long volume, long price, long id, long cookie, long goodTill)
     {
+        long result;
         switch(evt){
             case OrderEvent.PLACE:
-                return place(volume, price, cookie, goodTill);
+                result = place(volume, price, cookie, goodTill);
+                break;
 
             case OrderEvent.CANCEL:
                 cancel(id, cookie);
-                return id;
+                result = id;
+                break;
+
+            case OrderEvent.AMEND:
+                result = amend(id, volume, price);
+                break;
+
+            case OrderEvent.EXPIRE:
+                expire(goodTill);
+                result = 0;
+                break;
+
+            case OrderEvent.STOP:
+                result = placeStop(volume, price, id, cookie, goodTill);
+                break;
+
+            case OrderEvent.ICEBERG:
+                result = placeIceberg(volume, id, price, cookie, goodTill);
+                break;
+
+            case OrderEvent.PEG:
+                result = placePeg(volume, (int) id, price, cookie, goodTill);
+                break;
+
+            case OrderEvent.PLACE_FOK:
+                result = place(volume, price, cookie, goodTill, OrderType.FOK, 0);
+                break;
+
+            case OrderEvent.PLACE_MIN_QTY:
+                result = place(volume, price, cookie, goodTill, OrderType.MIN_QTY, id);
+                break;
+
+            case OrderEvent.PLACE_POST_ONLY:
+                result = place(volume, price, cookie, goodTill, OrderType.POST_ONLY, 0);
+                break;
+
+            case OrderEvent.OWNER:
+                placeOwner(id);
+                result = 0;
+                break;
+            default:
+                throw new java.util.NoSuchElementException("evt");
+        }
+        return result;
+    }
+
+    // dispatches every whole command record from the read position of in and appends their events to out,
+    // instead of passing them to the event ring or the handlers. returns the number of commands. the batch
+    // journals all its commands in one excerpt before it applies the first, its events reach out every
+    // STAGE_EVENTS of them and at its end, and it publishes once at its end. records are decoded straight
+    // into the book's internal paths, which neither journal nor publish each command
+    public int dispatchBatch(Bytes<?> in, Bytes<?> out) {
+        long start = in.readPosition();
+        long at = start;
+        int n = (int) (in.readRemaining() / COMMAND_SIZE);
+        long end = at + (long) n * COMMAND_SIZE;
+        if(stage == null)
+            stage = new Stage();
+        BookJournal journal = this.journal;
+        if(journal != null && n > 0)
+            journal.write(in, start, end);
+        this.journal = null;
+        batch = out;
+        try {
+            for(; at < end; at += COMMAND_SIZE)
+                batchCommand(in.readInt(at + C_EVT), in.readLong(at + C_VOLUME), in.readLong(at + C_PRICE),
+                        in.readLong(at + C_ID), in.readLong(at + C_COOKIE), in.readLong(at + C_GOODTILL));
+        } finally {
+            this.journal = journal;
+            stage.flush(out);
+            batch = null;
+            in.readPosition(at);
+        }
+        published();
+        return n;
+    }
+
+    // command of a batch with its fields as dispatch takes them
+    private void batchCommand(int evt, long volume, long price, long id, long cookie, long goodTill) {
+        switch(evt) {
+            case OrderEvent.PLACE:
+                limit(volume, price, cookie, goodTill);
+                break;
+            case OrderEvent.CANCEL:
+                remove(id, cookie);
+                break;
+            case OrderEvent.AMEND:
+                modify(id, volume, price);
+                settle();
+                break;
+            case OrderEvent.EXPIRE:
+                expired(goodTill);
+                break;
+            case OrderEvent.STOP:
+                stop(volume, price, id, cookie, goodTill);
+                break;
+            case OrderEvent.ICEBERG:
+                iceberg(volume, id, price, cookie, goodTill);
+                break;
+            case OrderEvent.PEG:
+                peg(volume, (int) id, price, cookie, goodTill);
+                break;
+            case OrderEvent.PLACE_FOK:
+                conditional(volume, price, cookie, goodTill, OrderType.FOK, 0);
+                break;
+            case OrderEvent.PLACE_MIN_QTY:
+                conditional(volume, price, cookie, goodTill, OrderType.MIN_QTY, id);
+                break;
+            case OrderEvent.PLACE_POST_ONLY:
+                conditional(volume, price, cookie, goodTill, OrderType.POST_ONLY, 0);
+                break;
+            case OrderEvent.OWNER:
+                placeOwner(id);     // the journal is off while the batch runs
+                break;
             default:
                 throw new java.util.NoSuchElementException("evt");
         }
     }
 
+    // appends a command record for dispatchBatch to out
+    public static void writeCommand(Bytes<?> out, int evt, long volume, long price, long id, long cookie, long goodTill) {
+        out.writeInt(evt).writeInt(0)
+                .writeLong(volume)
+                .writeLong(price)
+                .writeLong(id)
+                .writeLong(cookie)
+                .writeLong(goodTill);
+    }
+
+    private void batchEvent(int evt, long filled, long active, long price, long id, long cookie) {
+        if(stage.isFull())
+            stage.flush(batch);
+        stage.add(evt, filled, active, price, id, cookie);
+    }
+
+    // event to the batch output or the ring if there is one, otherwise to handler
+    @ForceInline
+    private void emit(int evt, long filled, long active, long price, long id, long cookie) {
+        if(batch != null)
+            batchEvent(evt, filled, active, price, id, cookie);
+        else if(events != null)
+            events.offer(evt, filled, active, price, id, cookie);
+        else if(handler != null)
+            handler.apply(evt, filled, active, price, id, cookie);
+    }
+
+    // command of id and cookie that dispatch failed on, reported like an order the book rejects
+    public void rejectCommand(long id, long cookie) {
+        reject(OrderEvent.REJECT, id, cookie);
+    }
+
+    @ForceInline
+    private void reject(int evt, long id, long cookie) {
+        if(batch != null)
+            batchEvent(evt, 0, 0, 0, id, cookie);
+        else if(events != null)
+            events.offer(evt, 0, 0, 0, id, cookie);
+        else if(error != null)
+            error.apply(evt, id, cookie);
+    }
+
     public long cancel(long id, long cookie) {
+        if(journal != null)
+            journal.write(OrderEvent.CANCEL, 0, 0, id, cookie, 0);
+        long left = remove(id, cookie);
+        published();
+        return left;
+    }
+
+    private long remove(long id, long cookie) {
         if(isFree(id)) {
-            if(error!=null)
-                error.apply(OrderEvent.REJECT_CANCEL, id, cookie);
+            reject(OrderEvent.REJECT_CANCEL, id, cookie);
             return 0;
         }
+        if(isStop(id))
+            return cancelStop(id);
         long volume = volume(id);
         long price = price(id);
+        long reserve = reserve(id);
         cookie = cookie(id);
+        if(reserve != 0)
+            index.setHidden(price, index.hidden(price) - reserve);
         pop(id);
         long left = index.volume(price);
-        if(index.contains(price)) {
-            // fix low/high prices
-            long p = price;
-            if(lowPrice==highPrice){
-                lowPrice = bestAsk = NO_ASK;
-                highPrice = bestBid = NO_BID;
-            }else if(p==highPrice)
-            {
-                if(p == bestAsk)
-                    bestAsk = NO_ASK;
-                while (p > lowPrice && index.contains(p))
-                    p--;        // potentially this price is highprice now
-                highPrice = p;
-            }else if(p==lowPrice) {
-                if(p == bestBid)
-                    bestBid = NO_BID;
-                while (p < highPrice && index.contains(p))
-                    p++;        // potentially this price is low now
-                lowPrice = p;
+        if(!index.contains(price))
+            emptied(price);
+        emit(OrderEvent.CANCEL, 0, volume, price, id, cookie);
+        if(pegs != 0)
+            repeg();
+        return left;
+    }
+
+    // id of the resting order with cookie, -1 if none or cookies are not indexed
+    public long byCookie(long cookie) {
+        return cookies != null ? cookies.getOrDefault(cookie, -1) : -1;
+    }
+
+    public long cancelByCookie(long cookie) {
+        long id = byCookie(cookie);
+        if(id < 0) {
+            reject(OrderEvent.REJECT_CANCEL, -1, cookie);
+            return 0;
+        }
+        return cancel(id, cookie);
+    }
+
+    public long amendByCookie(long cookie, long newVolume, long newPrice) {
+        long id = byCookie(cookie);
+        if(id < 0) {
+            reject(OrderEvent.REJECT_AMEND, -1, cookie);
+            return -1;
+        }
+        return amend(id, newVolume, newPrice);
+    }
+
+    // snapshot file: header of longs, then used part of the arena and of extras, ladder window, its bitmap,
+    // overflow levels, expiry entries, and the buy and sell stop ladders the same way if the book has them.
+    // all regions are copied as they are in memory
+    final static long MAGIC = 0x4f48424f4f4b3036L;    // "OHBOOK06"
+    final static int H_MAGIC = 0;
+    final static int H_CAPACITY = 8;
+    final static int H_TAIL = 16;
+    final static int H_HEAD = 24;
+    final static int H_SIZE = 32;
+    final static int H_SEQ = 40;
+    final static int H_BID = 48;
+    final static int H_ASK = 56;
+    final static int H_LOW = 64;
+    final static int H_HIGH = 72;
+    final static int H_MIN = 80;
+    final static int H_WINDOW = 88;
+    final static int H_OVERFLOW = 96;
+    final static int H_RING = 104;
+    final static int H_HEAP = 112;
+    final static int H_STOPS = 120;
+    final static int H_BUY_STOP = 128;
+    final static int H_SELL_STOP = 136;
+    final static int H_BUY_OVERFLOW = 144;
+    final static int H_SELL_OVERFLOW = 152;
+    final static int H_STOP_MIN = 160;      // stop ladders do not slide, the book's may have since it was built
+    final static int H_PEGS = 168;
+    final static int H_PEG_BID = 176;
+    final static int H_PEG_ASK = 184;
+    final static int H_PEG_HEAD = 192;      // 4 longs, one a peg queue
+    final static int H_PEG_TAIL = 224;      // 4 longs
+    final static int H_OWNER = 256;
+    final static int HEADER_SIZE = 320;
+
+    public void snapshot(Path path) throws IOException {
+        long arena = tail * ELEMENT_SIZE;
+        long extra = tail * EXTRA_SIZE;
+        long ring = expiry.last - expiry.first;
+        long expiries = (ring + expiry.heap.count) * ExpiryQueue.ENTRY_SIZE;
+        long size = HEADER_SIZE + arena + extra + index.saved() + expiries;
+        if(buyStops != null)
+            size += buyStops.saved() + sellStops.saved();
+        try(FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            try {
+                map.order(ByteOrder.nativeOrder());
+                map.putLong(H_CAPACITY, capacity);
+                map.putLong(H_TAIL, tail);
+                map.putLong(H_HEAD, head);
+                map.putLong(H_SIZE, this.size);
+                map.putLong(H_SEQ, seq);
+                map.putLong(H_BID, bestBid);
+                map.putLong(H_ASK, bestAsk);
+                map.putLong(H_LOW, lowPrice);
+                map.putLong(H_HIGH, highPrice);
+                map.putLong(H_MIN, index.min);
+                map.putLong(H_WINDOW, index.window);
+                map.putLong(H_OVERFLOW, index.overflow.count);
+                map.putLong(H_RING, ring);
+                map.putLong(H_HEAP, expiry.heap.count);
+                map.putLong(H_OWNER, owner);
+                map.putLong(H_PEGS, pegs);
+                map.putLong(H_PEG_BID, pegBid);
+                map.putLong(H_PEG_ASK, pegAsk);
+                for(int q = 0; q < pegHead.length; q++) {
+                    map.putLong(H_PEG_HEAD + q*8, pegHead[q]);
+                    map.putLong(H_PEG_TAIL + q*8, pegTail[q]);
+                }
+                if(buyStops != null) {
+                    map.putLong(H_STOPS, 1);
+                    map.putLong(H_BUY_STOP, buyStop);
+                    map.putLong(H_SELL_STOP, sellStop);
+                    map.putLong(H_BUY_OVERFLOW, buyStops.overflow.count);
+                    map.putLong(H_SELL_OVERFLOW, sellStops.overflow.count);
+                    map.putLong(H_STOP_MIN, buyStops.min);
+                }
+
+                long addr = address(map) + HEADER_SIZE;
+                copyOut(0, addr, arena);
+                addr += arena;
+                extras.copyOut(0, addr, extra);
+                addr += extra;
+                addr = index.save(addr);
+                addr = expiry.save(addr);
+                if(buyStops != null)
+                    sellStops.save(buyStops.save(addr));
+
+                map.putLong(H_MAGIC, MAGIC);    // last, a torn snapshot does not restore
+                map.force();
+            } finally {
+                unmap(map);
             }
-            // fix best bid/best ask
-            p = price;
-            if(p == bestBid) {
-                while(p >= lowPrice && index.contains(p))
-                    p--;
-                bestBid = p;
-            }else if(p == bestAsk) {
-                while(p <= highPrice && index.contains(p))
-                    p++;
-                bestAsk = p;
+        }
+    }
+
+    public static OffHeapBook restore(Path path) throws IOException {
+        return restore(path, builder());
+    }
+
+    // book from snapshot at path with handlers and options of params, capacity and window are taken from the file.
+    // params itself is not changed
+    public static OffHeapBook restore(Path path, Builder params) throws IOException {
+        params = params.copy();
+        try(FileChannel channel = FileChannel.open(path, READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                map.order(ByteOrder.nativeOrder());
+                if(map.getLong(H_MAGIC) != MAGIC)
+                    throw new IOException("not a book snapshot: " + path);
+                long min = map.getLong(H_MIN);
+                long window = map.getLong(H_WINDOW);
+                if(map.getLong(H_STOPS) != 0)
+                    params.stops();
+                OffHeapBook book = params
+                        .capacity((int) map.getLong(H_CAPACITY))
+                        .range(min, min + window - 1)
+                        .window(window)
+                        .build();
+                book.tail = map.getLong(H_TAIL);
+                book.head = map.getLong(H_HEAD);
+                book.size = (int) map.getLong(H_SIZE);
+                book.seq = map.getLong(H_SEQ);
+                book.bestBid = map.getLong(H_BID);
+                book.bestAsk = map.getLong(H_ASK);
+                book.lowPrice = map.getLong(H_LOW);
+                book.highPrice = map.getLong(H_HIGH);
+                book.owner = map.getLong(H_OWNER);
+                book.pegs = map.getLong(H_PEGS);
+                book.pegBid = map.getLong(H_PEG_BID);
+                book.pegAsk = map.getLong(H_PEG_ASK);
+                for(int q = 0; q < book.pegHead.length; q++) {
+                    book.pegHead[q] = map.getLong(H_PEG_HEAD + q*8);
+                    book.pegTail[q] = map.getLong(H_PEG_TAIL + q*8);
+                }
+
+                long addr = address(map) + HEADER_SIZE;
+                long arena = book.tail * ELEMENT_SIZE;
+                book.copyIn(addr, 0, arena);
+                addr += arena;
+                long extra = book.tail * EXTRA_SIZE;
+                book.extras.copyIn(addr, 0, extra);
+                addr += extra;
+                addr = book.index.load(addr, map.getLong(H_OVERFLOW));
+                addr = book.expiry.load(addr, map.getLong(H_RING), map.getLong(H_HEAP));
+                if(book.buyStops != null && map.getLong(H_STOPS) != 0) {
+                    book.buyStop = map.getLong(H_BUY_STOP);
+                    book.sellStop = map.getLong(H_SELL_STOP);
+                    for(OffHeapLevels stops : new OffHeapLevels[] {book.buyStops, book.sellStops}) {
+                        stops.min = map.getLong(H_STOP_MIN);
+                        stops.max = stops.min + window - 1;
+                    }
+                    addr = book.buyStops.load(addr, map.getLong(H_BUY_OVERFLOW));
+                    book.sellStops.load(addr, map.getLong(H_SELL_OVERFLOW));
+                }
+
+                if(book.cookies != null)
+                    for(long id = 0; id < book.tail; id++)
+                        if(!book.isFree(id))
+                            book.cookies.put(book.cookie(id), id);
+                return book;
+            } finally {
+                unmap(map);
             }
         }
-        if(handler != null)
-            handler.apply(OrderEvent.CANCEL, 0, volume, price, id, cookie);
-        return left;
     }
 
     private String format(long start, long end) {
@@ -617,7 +2428,7 @@ public class OffHeapBook extends UnsafeBuffer implements OrderBook
         long price;
         long dir = start<=end ? 1: -1;
         for(price = start; price*dir <= end*dir; price += dir)
-            if(!index.contains(price)) {
+            if(index.contains(price)) {
                 sb.append(price);
                 sb.append("->");
                 long id = index.head(price);
@@ -0,0 +1,241 @@
+package org.freeticks.lob;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesStore;
+import net.openhft.chronicle.queue.ChronicleQueue;
+import net.openhft.chronicle.queue.ExcerptAppender;
+import net.openhft.chronicle.queue.ExcerptTailer;
+import net.openhft.chronicle.queue.TailerDirection;
+import net.openhft.chronicle.queue.impl.single.SingleChronicleQueueBuilder;
+import net.openhft.chronicle.wire.DocumentContext;
+import net.openhft.chronicle.wire.WireType;
+import org.freeticks.LevelCursor;
+import org.freeticks.OrderCursor;
+import org.freeticks.OrderEvent;
+import org.freeticks.UnsafeBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+// market by order feed of one book: every book event becomes a sequenced message of fixed layout:
+// type int, seq long, id long, price long, volume long. volume is signed like the book's: resting volume
+// for ADD and MODIFY, filled volume for EXECUTE and TRADE. consumers apply messages by id:
+//   ADD       order rests at the tail of price
+//   MODIFY    order changed to volume at price, keeps its place if price is the same and volume is not larger,
+//             otherwise goes to the tail of price. an id that is not resting is added
+//   DELETE    order left the book (cancel, expiry). consumers ignore the id of an order they do not hold
+//   EXECUTE   resting order filled by volume, gone when nothing is left
+//   TRADE     aggressor filled by volume. the aggressor is not resting, an id that is was amended across
+//             the spread and leaves its old place
+// an iceberg is seen as its shown part only: when that is executed, a MODIFY brings the next part to the tail.
+// waiting stops are not in the book and not in the feed, the STOP and TRIGGER events are dropped. a released
+// stop shows up under its id as the orders do, TRADE when it takes and ADD when it rests. a waiting stop
+// cancelled or expired gives a DELETE of an id no consumer holds, as does the remainder of a market stop.
+// messages are staged off-heap by plain stores and flush appends them to a chronicle queue as one excerpt,
+// a queue write per message would cost more than matching. OffHeapBook flushes after every command when
+// built with orders(feed), a feed thread draining an EventRing flushes after every drain. appending never
+// waits for readers, tailers read the queue at their own pace. snapshot appends every resting order in
+// priority with the seq of the last message it includes, a reader that finds a gap in seq recovers from
+// the latest snapshot and replays the messages after it.
+public class OrderFeed extends UnsafeBuffer implements OffHeapBook.EventHandler, AutoCloseable
+{
+    public final static int ADD = 1;
+    public final static int MODIFY = 2;
+    public final static int DELETE = 3;
+    public final static int EXECUTE = 4;
+    public final static int TRADE = 5;
+    public final static int SNAPSHOT = 6;
+
+    // message fields
+    final static int TYPE   = 0;
+    final static int SEQ    = 4;
+    final static int ID     = 12;
+    final static int PRICE  = 20;
+    final static int VOLUME = 28;
+    public final static int MESSAGE_SIZE = 36;
+    final static int BATCH = 256;   // messages staged at most
+
+    public interface OrderHandler {
+        // SNAPSHOT clears all orders, the ADD messages of its orders follow with the same seq
+        void apply(int type, long seq, long id, long price, long volume);
+    }
+
+    final ChronicleQueue queue;
+    final ExcerptAppender appender;
+    final BytesStore<?, ByteBuffer> staged;
+    long stageAt;
+    long seq;
+
+    public OrderFeed(Path path) {
+        super(BATCH, MESSAGE_SIZE);
+        this.queue = open(path);
+        this.appender = queue.acquireAppender();
+        this.staged = BytesStore.wrap((ByteBuffer) bytes);
+        this.stageAt = headAddress;
+    }
+
+    static ChronicleQueue open(Path path) {
+        return SingleChronicleQueueBuilder.binary(path)
+                .wireType(WireType.FIELDLESS_BINARY)
+                .build();
+    }
+
+    @Override
+    public void apply(int evt, long filled, long active, long price, long id, long cookie) {
+        switch(evt) {
+            case OrderEvent.PLACE:
+                write(ADD, id, price, active);
+                break;
+            case OrderEvent.AMEND:
+            case OrderEvent.REPLENISH:
+                write(MODIFY, id, price, active);
+                break;
+            case OrderEvent.CANCEL:
+                write(DELETE, id, price, active);
+                break;
+            case OrderEvent.FILL:
+            case OrderEvent.PARTFILL:
+                write(active == 0 ? EXECUTE : TRADE, id, price, filled);   // active=0 means that volume was passive
+                break;
+        }
+    }
+
+    private void write(int type, long id, long price, long volume) {
+        long at = stageAt;
+        putInt(at + TYPE, type);
+        putLong(at + SEQ, ++seq);
+        putLong(at + ID, id);
+        putLong(at + PRICE, price);
+        putLong(at + VOLUME, volume);
+        stageAt = at + MESSAGE_SIZE;
+        if(stageAt == tailAddress)
+            flush();
+    }
+
+    // appends the staged messages as one excerpt
+    public void flush() {
+        if(stageAt == headAddress)
+            return;
+        try(DocumentContext dc = appender.writingDocument()) {
+            dc.wire().bytes().write(staged, 0L, stageAt - headAddress);
+        }
+        stageAt = headAddress;
+    }
+
+    // drains events of the book's ring and appends them, returns their number
+    public int drain(EventRing ring, int limit) {
+        int n = ring.drain(this, limit);
+        flush();
+        return n;
+    }
+
+    // appends every resting order of book after the staged messages. book has to be the one feeding this
+    // and every event it emitted applied, so call it from the thread of the book or between drains of a quiet ring
+    public void snapshot(OffHeapBook book) {
+        flush();
+        LevelCursor levels = book.levelCursor();
+        OrderCursor orders = book.orderCursor();
+        try(DocumentContext dc = appender.writingDocument()) {
+            Bytes<?> bytes = dc.wire().bytes();
+            bytes.writeInt(SNAPSHOT).writeLong(seq);
+            for(int side = 0; side < 2; side++) {
+                for(LevelCursor walk = side == 0 ? levels.bids() : levels.asks(); walk.next(); ) {
+                    for(orders.at(walk.price()); orders.next(); )
+                        bytes.writeLong(orders.id()).writeLong(orders.price()).writeLong(orders.volume());
+                }
+            }
+        }
+    }
+
+    // seq of the last message
+    public long seq() {
+        return seq;
+    }
+
+    @Override
+    public void close() {
+        flush();
+        queue.close();
+    }
+
+    // tailer of a feed queue. read hands live messages on in seq order and skips snapshots, recover
+    // rebuilds the consumer's orders after a gap
+    public static class Reader implements AutoCloseable {
+        final ChronicleQueue queue;
+        final ExcerptTailer tailer;
+        long seq;
+
+        public Reader(Path path) {
+            this.queue = open(path);
+            this.tailer = queue.createTailer();
+        }
+
+        // applies the messages of the next excerpt, returns their number, 0 if there is none yet
+        public int read(OrderHandler handler) {
+            for(;;) {
+                try(DocumentContext dc = tailer.readingDocument()) {
+                    if(!dc.isPresent())
+                        return 0;
+                    Bytes<?> bytes = dc.wire().bytes();
+                    if(bytes.readInt(bytes.readPosition()) == SNAPSHOT)
+                        continue;
+                    int n = 0;
+                    for(; bytes.readRemaining() >= MESSAGE_SIZE; n++) {
+                        int type = bytes.readInt();
+                        seq = bytes.readLong();
+                        long id = bytes.readLong();
+                        long price = bytes.readLong();
+                        handler.apply(type, seq, id, price, bytes.readLong());
+                    }
+                    return n;
+                }
+            }
+        }
+
+        // hands handler the latest snapshot, or clears it if there is none, and every message after
+        // up to the end of the queue. returns the seq reached, read goes on from there
+        public long recover(OrderHandler handler) {
+            long index = -1;
+            ExcerptTailer back = queue.createTailer().direction(TailerDirection.BACKWARD).toEnd();
+            while(index < 0) {
+                try(DocumentContext dc = back.readingDocument()) {
+                    if(!dc.isPresent())
+                        break;
+                    if(dc.wire().bytes().readInt() == SNAPSHOT)
+                        index = dc.index();
+                }
+            }
+            if(index < 0) {
+                tailer.toStart();
+                seq = 0;
+                handler.apply(SNAPSHOT, 0, -1, 0, 0);
+            } else {
+                tailer.moveToIndex(index);
+                try(DocumentContext dc = tailer.readingDocument()) {
+                    Bytes<?> bytes = dc.wire().bytes();
+                    bytes.readInt();
+                    seq = bytes.readLong();
+                    handler.apply(SNAPSHOT, seq, -1, 0, 0);
+                    while(bytes.readRemaining() > 0) {
+                        long id = bytes.readLong();
+                        long price = bytes.readLong();
+                        handler.apply(ADD, seq, id, price, bytes.readLong());
+                    }
+                }
+            }
+            while(read(handler) > 0)
+                ;
+            return seq;
+        }
+
+        // seq of the last message applied
+        public long seq() {
+            return seq;
+        }
+
+        @Override
+        public void close() {
+            queue.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.freeticks.lob;
+
+import org.freeticks.Allocator;
+import org.freeticks.UnsafeBuffer;
+
+import static org.freeticks.OrderBook.NO_ASK;
+import static org.freeticks.OrderBook.NO_BID;
+
+// levels outside of the ladder window, kept sorted by price in a flat off-heap array.
+// each record is the price followed by a ladder level record, so level field offsets are the same.
+class OverflowLevels extends UnsafeBuffer {
+    final static int PRICE = 0;
+    final static int LEVEL = 8;
+
+    final long capacity;
+    final long recordSize;
+    final long empty;       // always zero record, read for prices without a level
+    long count;
+
+    OverflowLevels(long capacity, long levelSize, Allocator allocator) {
+        super(capacity + 1, LEVEL + levelSize, allocator);
+        this.capacity = capacity;
+        this.recordSize = LEVEL + levelSize;
+        this.empty = record(capacity);
+    }
+
+    long record(long i) {
+        return headAddress + i * recordSize;
+    }
+
+    long price(long i) {
+        return getLong(record(i) + PRICE);
+    }
+
+    // field at offset of the level record i
+    long levelField(long i, long offset) {
+        return getLong(record(i) + LEVEL + offset);
+    }
+
+    // index of price, -(insertion point)-1 if absent
+    long find(long price) {
+        long lo = 0;
+        long hi = count - 1;
+        while(lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long p = price(mid);
+            if(p < price)
+                lo = mid + 1;
+            else if(p > price)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+
+    boolean contains(long price) {
+        return count > 0 && find(price) >= 0;
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    // address of the level at price, of the empty record if there is none
+    long level(long price) {
+        long i = find(price);
+        return (i < 0 ? empty : record(i)) + LEVEL;
+    }
+
+    // zero level at price, returns its address. callers check isFull first
+    long insert(long price) {
+        assert count < capacity : "overflow full";
+        long i = -find(price) - 1;
+        long at = record(i);
+        copyMemory(at, at + recordSize, (count - i) * recordSize);
+        setMemory(at, recordSize, (byte) 0);
+        putLong(at + PRICE, price);
+        count++;
+        return at + LEVEL;
+    }
+
+    void remove(long price) {
+        remove(find(price), 1);
+    }
+
+    // drops n records starting at index i
+    void remove(long i, long n) {
+        long at = record(i);
+        copyMemory(at + n * recordSize, at, (count - i - n) * recordSize);
+        count -= n;
+    }
+
+    // lowest price at or above price, NO_ASK if none
+    long ceiling(long price) {
+        long i = find(price);
+        if(i < 0)
+            i = -i - 1;
+        return i < count ? price(i) : NO_ASK;
+    }
+
+    // highest price at or below price, NO_BID if none
+    long floor(long price) {
+        long i = find(price);
+        if(i < 0)
+            i = -i - 2;
+        return i >= 0 ? price(i) : NO_BID;
+    }
+}
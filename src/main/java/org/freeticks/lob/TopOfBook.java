@@ -0,0 +1,154 @@
+package org.freeticks.lob;
+
+import net.openhft.chronicle.core.UnsafeMemory;
+import org.freeticks.Allocator;
+import org.freeticks.UnsafeBuffer;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.freeticks.OrderBook.NO_ASK;
+import static org.freeticks.OrderBook.NO_BID;
+
+// latest best prices and volumes of one book in an off-heap seqlock slot. updates are conflated, readers
+// see the last published top and not every change in between. the writer makes seq odd, stores the fields
+// and makes seq even again, a reader copies the fields between two reads of the same even seq and tries
+// again otherwise, so it never blocks the writer. readers are lock-free, not wait-free: a poll spins while
+// a write is in progress. the slot has a cache line of its own between padding lines. built with a
+// MappedAllocator the slot is in a file that other processes open to poll it
+public class TopOfBook extends UnsafeBuffer
+{
+    final static int LINE = 64;
+    final static int SIZE = 3 * LINE;
+
+    // slot fields
+    final static int SEQ        = 0;
+    final static int BID        = 8;
+    final static int BID_VOLUME = 16;
+    final static int ASK        = 24;
+    final static int ASK_VOLUME = 32;
+
+    final long slot;
+    OffHeapBook book;
+    // last published, writer only
+    long bid = NO_BID;
+    long bidVolume;
+    long ask = NO_ASK;
+    long askVolume;
+
+    public TopOfBook() {
+        this(Allocator.DIRECT);
+    }
+
+    public TopOfBook(Allocator allocator) {
+        super(SIZE, 1, allocator);
+        this.slot = (headAddress + 2 * LINE - 1) & -LINE;
+    }
+
+    // slot published by another process into file, the one its MappedAllocator created for it
+    public static TopOfBook open(Path file) {
+        return new TopOfBook(bytes -> {
+            try(FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+                return (DirectBuffer) channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    void attach(OffHeapBook book) {
+        this.book = book;
+        write(bid, bidVolume, ask, askVolume);
+    }
+
+    // writes the book's top if it changed since the last time. OffHeapBook publishes after every command,
+    // dispatched or not, and dispatchBatch after every batch
+    public void publish() {
+        OffHeapBook book = this.book;
+        long bid = book.bid();
+        long ask = book.ask();
+        long bidVolume = bid != NO_BID ? book.bidVolume() : 0;
+        long askVolume = ask != NO_ASK ? book.askVolume() : 0;
+        if(bid == this.bid && ask == this.ask && bidVolume == this.bidVolume && askVolume == this.askVolume)
+            return;
+        this.bid = bid;
+        this.ask = ask;
+        this.bidVolume = bidVolume;
+        this.askVolume = askVolume;
+        write(bid, bidVolume, ask, askVolume);
+    }
+
+    private void write(long bid, long bidVolume, long ask, long askVolume) {
+        long seq = getLong(slot + SEQ);
+        putLongOrdered(slot + SEQ, seq + 1);
+        UnsafeMemory.UNSAFE.storeFence();   // odd seq is visible before any field
+        putLong(slot + BID, bid);
+        putLong(slot + BID_VOLUME, bidVolume);
+        putLong(slot + ASK, ask);
+        putLong(slot + ASK_VOLUME, askVolume);
+        putLongOrdered(slot + SEQ, seq + 2);
+    }
+
+    // copy of the slot for one reader thread, allocates nothing after creation
+    public View view() {
+        return new View();
+    }
+
+    public final class View {
+        long seq;
+        long bid = NO_BID;
+        long bidVolume;
+        long ask = NO_ASK;
+        long askVolume;
+
+        // copies the latest published top, false if it is the one copied last time
+        public boolean poll() {
+            for(;;) {
+                long seq = getLongVolatile(slot + SEQ);
+                if((seq & 1) != 0)
+                    continue;   // write in progress, a handful of stores
+                if(seq == this.seq)
+                    return false;
+                long bid = getLong(slot + BID);
+                long bidVolume = getLong(slot + BID_VOLUME);
+                long ask = getLong(slot + ASK);
+                long askVolume = getLong(slot + ASK_VOLUME);
+                UnsafeMemory.UNSAFE.loadFence();    // fields are read before seq again
+                if(getLongVolatile(slot + SEQ) != seq)
+                    continue;
+                this.seq = seq;
+                this.bid = bid;
+                this.bidVolume = bidVolume;
+                this.ask = ask;
+                this.askVolume = askVolume;
+                return true;
+            }
+        }
+
+        // number of updates published up to the copy, 0 before the book attached
+        public long seq() {
+            return seq / 2;
+        }
+
+        public long bid() {
+            return bid;
+        }
+
+        public long bidVolume() {
+            return bidVolume;
+        }
+
+        public long ask() {
+            return ask;
+        }
+
+        public long askVolume() {
+            return askVolume;
+        }
+    }
+}
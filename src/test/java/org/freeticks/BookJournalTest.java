@@ -0,0 +1,170 @@
+package org.freeticks;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.core.io.IOTools;
+import org.freeticks.lob.BookJournal;
+import org.freeticks.lob.OffHeapBook;
+import org.freeticks.lob.OrderEmitter;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.freeticks.OrderEvent.*;
+
+public class BookJournalTest
+{
+    protected static final Logger LOG = LoggerFactory.getLogger(BookJournalTest.class);
+
+    public final static int NITERS = 100_000;
+
+    static void drive(OffHeapBook book, int niters) {
+        drive(book, niters, 1);
+    }
+
+    // random place, cancel and expire commands through dispatch
+    static void drive(OffHeapBook book, int niters, long seed) {
+        OrderEmitter emitter = new OrderEmitter.Builder()
+                .random(new Random(seed))
+                .onEvent((evt, volume, price, time) -> {
+                    long id = -1;
+                    long cookie = time;
+                    if(evt==CANCEL) {
+                        if(volume>=0 && !book.hasBids() || volume<0 && !book.hasAsks())
+                            return;
+                        id = volume>0 ? book.head(book.bid()) : book.head(book.ask());
+                        cookie = book.cookie(id);
+                    }
+                    book.dispatch(evt, volume, price, id, cookie, (time & 1) == 0 ? OrderType.GTC : time+100);
+                    if((time%1000) == 0)
+                        book.dispatch(EXPIRE, 0, 0, -1, 0, time);
+                })
+                .build();
+        for(int i=0; i<niters; i++)
+            emitter.run();
+    }
+
+    static void assertSameBook(OffHeapBook actual, OffHeapBook expected) {
+        assertThat(actual.size()).isEqualTo(expected.size());
+        assertThat(actual.bid()).isEqualTo(expected.bid());
+        assertThat(actual.ask()).isEqualTo(expected.ask());
+        assertThat(actual.low()).isEqualTo(expected.low());
+        assertThat(actual.high()).isEqualTo(expected.high());
+        long[] prices = expected.bids().toArray();
+        assertThat(actual.bids().toArray()).containsExactly(prices);
+        for(long price : prices) {
+            assertThat(actual.levels().volume(price)).isEqualTo(expected.levels().volume(price));
+            assertThat(actual.orders(price).toArray()).containsExactly(expected.orders(price).toArray());
+        }
+        prices = expected.asks().toArray();
+        assertThat(actual.asks().toArray()).containsExactly(prices);
+        for(long price : prices) {
+            assertThat(actual.levels().volume(price)).isEqualTo(expected.levels().volume(price));
+            assertThat(actual.orders(price).toArray()).containsExactly(expected.orders(price).toArray());
+        }
+    }
+
+    @Test
+    public void replay_rebuilds_book() throws Exception {
+        Path path = Files.createTempDirectory("journal");
+        try {
+            OffHeapBook book;
+            try(BookJournal journal = new BookJournal(path)) {
+                book = OffHeapBook.builder()
+                        .journal(journal)
+                        .build();
+                drive(book, NITERS);
+                // a batch journals its commands in one excerpt
+                Bytes<?> in = Bytes.allocateElasticDirect();
+                Bytes<?> out = Bytes.allocateElasticDirect();
+                long mid = (book.bid() + book.ask()) / 2;
+                for(int i = 0; i < 100; i++)
+                    OffHeapBook.writeCommand(in, PLACE, i % 2 == 0 ? 3 : -2, mid - 5 + i % 11, -1, i, OrderType.GTC);
+                assertThat(book.dispatchBatch(in, out)).isEqualTo(100);
+                in.release();
+                out.release();
+                drive(book, 1000, 2);
+            }
+            assertThat(book.size()).isGreaterThan(0);
+
+            OffHeapBook replayed = OffHeapBook.builder().build();
+            long ns = System.nanoTime();
+            long count = BookJournal.replay(path, replayed);
+            ns = System.nanoTime() - ns;
+            LOG.info(String.format("REPLAYED: %.2f mio, ELAPSED %.2f s, THROUGHPUT: %.3f mio/s", count/1e6, ns/1e9, count/1e6/(ns/1e9)));
+
+            assertSameBook(replayed, book);
+        } finally {
+            IOTools.deleteDirWithFiles(path.toFile(), 2);
+        }
+    }
+
+    static List<Long> fields(List<OrderMessage> events) {
+        return events.stream()
+                .flatMap(e -> Stream.of((long) e.evt(), e.filled(), e.active(), e.price(), e.id(), e.cookie()))
+                .collect(Collectors.toList());
+    }
+
+    static OffHeapBook.Builder options(List<OrderMessage> events) {
+        return OffHeapBook.builder()
+                .range(-1000, 1000)
+                .stops()
+                .indexCookies()
+                .selfTrade(OffHeapBook.STP_DECREMENT_BOTH)
+                .onEvent((evt, filled, active, price, id, cookie) -> events.add(new OrderMessage(evt,filled,active,price,id,cookie)));
+    }
+
+    // the methods of the book journal what they do like dispatch does
+    @Test
+    public void replay_rebuilds_book_of_method_calls() throws Exception {
+        Path path = Files.createTempDirectory("journal");
+        try {
+            List<OrderMessage> events = new ArrayList<>();
+            OffHeapBook book;
+            try(BookJournal journal = new BookJournal(path)) {
+                book = options(events)
+                        .journal(journal)
+                        .build();
+                Random random = new Random(1);
+                for(long time = 1; time <= NITERS / 10; time++) {
+                    long volume = (random.nextBoolean() ? 1 : -1) * (1 + random.nextInt(10));
+                    long price = 90 + random.nextInt(21);
+                    long goodTill = random.nextBoolean() ? OrderType.GTC : time + random.nextInt(100);
+                    switch(random.nextInt(10)) {
+                        case 0: book.placeOwner(random.nextInt(3)); break;
+                        case 1: book.place(volume, price, time, goodTill, OrderType.FOK << random.nextInt(3), 3); break;
+                        case 2: book.placeIceberg(3 * volume, volume, price, time, goodTill); break;
+                        case 3: book.placeStop(volume, price, volume > 0 ? price + 2 : price - 2, time, goodTill); break;
+                        case 4: book.placePeg(volume, random.nextBoolean() ? OrderType.PEG_PRIMARY : OrderType.PEG_MID,
+                                volume > 0 ? -random.nextInt(3) : random.nextInt(3), time, goodTill); break;
+                        case 5: book.cancelByCookie(time - random.nextInt(50)); break;
+                        case 6: book.amendByCookie(time - random.nextInt(50), volume, price); break;
+                        case 7: book.expire(time); break;
+                        default: book.place(volume, price, time, goodTill);
+                    }
+                }
+                if(book.hasBids())
+                    book.cancel(book.head(book.bid()), 0);
+                if(book.hasAsks())
+                    book.amend(book.head(book.ask()), -1, book.ask() + 1);
+            }
+            assertThat(book.size()).isGreaterThan(0);
+
+            List<OrderMessage> replayedEvents = new ArrayList<>();
+            OffHeapBook replayed = options(replayedEvents).build();
+            BookJournal.replay(path, replayed);
+            assertSameBook(replayed, book);
+            assertThat(fields(replayedEvents)).isEqualTo(fields(events));
+        } finally {
+            IOTools.deleteDirWithFiles(path.toFile(), 2);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.freeticks;
+
+import org.freeticks.lob.BookRegistry;
+import org.freeticks.lob.OffHeapBook;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import pl.wavesoftware.jmh.junit.utilities.JavaAgentSkip;
+import pl.wavesoftware.jmh.junit.utilities.JmhCleaner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.freeticks.OrderEvent.*;
+
+public class BookRegistryTest
+{
+    protected static final Logger LOG = LoggerFactory.getLogger(BookRegistryTest.class);
+
+    @ClassRule
+    public static RuleChain chain = RuleChain
+            .outerRule(new JmhCleaner(BookRegistryTest.class))
+            .around(JavaAgentSkip.ifPresent());
+
+    @Test
+    public void routes_by_symbol() throws Exception {
+        int symbols = 8;
+        AtomicLongArray fills = new AtomicLongArray(symbols);
+        ConcurrentHashMap<Integer, String> owners = new ConcurrentHashMap<>();
+        BookRegistry registry = BookRegistry.builder()
+                .shards(3)
+                .symbols(symbols)
+                .ringSize(16)
+                .books(symbol -> {
+                    owners.put(symbol, Thread.currentThread().getName());
+                    return OffHeapBook.builder()
+                            .range(-1000, 1000)
+                            .onEvent((evt, filled, active, price, id, cookie) -> {
+                                if(evt == FILL && active != 0)
+                                    fills.incrementAndGet(symbol);
+                            })
+                            .build();
+                })
+                .build()
+                .start();
+
+        for(int i = 0; i < 1000; i++)
+            for(int symbol = 0; symbol < symbols; symbol++) {
+                registry.dispatch(symbol, PLACE, 1 + symbol, 100, 0, i, OrderType.GTC);
+                registry.dispatch(symbol, PLACE, -1 - symbol, 100 - symbol, 0, i, OrderType.GTC);
+            }
+        registry.dispatch(5, PLACE, 7, 10, 0, 0, OrderType.GTC);
+        registry.close();
+
+        for(int symbol = 0; symbol < symbols; symbol++) {
+            assertThat(fills.get(symbol)).isEqualTo(1000);
+            assertThat(owners.get(symbol)).isEqualTo("book-shard-" + registry.shardOf(symbol));
+        }
+        assertThat(registry.book(5).bids().toArray()).containsExactly(10);
+        assertThat(registry.book(4).size()).isEqualTo(0);
+    }
+
+    // a command a book throws on is rejected to that book, the other books of its shard go on
+    @Test
+    public void bad_command_keeps_shard() throws Exception {
+        ConcurrentLinkedQueue<Long> rejected = new ConcurrentLinkedQueue<>();
+        BookRegistry registry = BookRegistry.builder()
+                .shards(2)
+                .symbols(4)
+                .ringSize(16)
+                .books(symbol -> OffHeapBook.builder()
+                        .range(-1000, 1000)
+                        .onError((evt, id, cookie) -> {
+                            if(evt == REJECT)
+                                rejected.add(cookie);
+                        })
+                        .build())
+                .build()
+                .start();
+
+        registry.dispatch(0, -1, 1, 100, 0, 5, OrderType.GTC);
+        registry.dispatch(2, PLACE, 1, 100, 0, 6, OrderType.GTC);     // same shard as 0
+        assertThatThrownBy(() -> registry.dispatch(4, PLACE, 1, 100, 0, 7, OrderType.GTC))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> registry.offer(-1, PLACE, 1, 100, 0, 8, OrderType.GTC))
+                .isInstanceOf(IllegalArgumentException.class);
+        registry.flush();
+        registry.close();
+
+        assertThat(rejected).containsExactly(5L);
+        assertThat(registry.book(2).bids().toArray()).containsExactly(100);
+    }
+
+    // crossing orders over 64 symbols end to end through the shards, one producer thread per shard feeding
+    // the symbols of its shard only, so the shards and not a shared producer set the pace
+    @State(Scope.Benchmark)
+    public static class Engine {
+        @Param({"1", "2", "4"})
+        public int shards;
+
+        BookRegistry registry;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            registry = BookRegistry.builder()
+                    .shards(shards)
+                    .symbols(SYMBOLS)
+                    .singleProducer(true)
+                    .books(symbol -> OffHeapBook.builder()
+                            .capacity(1024)
+                            .range(-1000, 1000)
+                            .onEvent((evt, filled, active, price, id, cookie) -> {})
+                            .build())
+                    .build()
+                    .start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            registry.close();
+        }
+    }
+
+    // benchmark thread i feeds shard i
+    @State(Scope.Thread)
+    public static class Producer {
+        int[] symbols;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup(Engine engine, ThreadParams params) {
+            int shard = params.getThreadIndex();
+            symbols = IntStream.range(0, SYMBOLS).filter(s -> engine.registry.shardOf(s) == shard).toArray();
+        }
+    }
+
+    public static final int SYMBOLS = 64;
+    public static final int BATCH = 10000;
+
+    // the rings of the shards keep producers from running ahead of their matching threads
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void dispatch(Engine engine, Producer producer) {
+        BookRegistry registry = engine.registry;
+        int[] symbols = producer.symbols;
+        for(int i = 0; i < BATCH; i += 2) {
+            int symbol = symbols[(i >> 1) % symbols.length];
+            long cookie = producer.cookie++;
+            registry.dispatch(symbol, PLACE, 1, 100 + (i & 7), 0, cookie, OrderType.GTC);
+            registry.dispatch(symbol, PLACE, -1, 100, 0, cookie, OrderType.GTC);
+        }
+    }
+
+    // runs every shard count with as many producers and logs the throughput of each
+    @Test
+    public void bench() throws Exception {
+        for(int shards : new int[] {1, 2, 4}) {
+            Options opt = new OptionsBuilder()
+                    .include(this.getClass().getName() + ".*")
+                    .param("shards", String.valueOf(shards))
+                    .threads(shards)
+                    .warmupTime(TimeValue.seconds(1))
+                    .warmupIterations(3)
+                    .measurementTime(TimeValue.seconds(1))
+                    .measurementIterations(3)
+                    .forks(1)
+                    .shouldFailOnError(true)
+                    .shouldDoGC(true)
+                    .build();
+
+            for(RunResult result : new Runner(opt).run())
+                LOG.info(String.format("SHARDS: %d, THROUGHPUT: %.3f mio/s", shards,
+                        result.getPrimaryResult().getScore()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new BookRegistryTest().bench();
+    }
+}
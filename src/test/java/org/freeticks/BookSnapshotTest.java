@@ -0,0 +1,90 @@
+package org.freeticks;
+
+import net.openhft.chronicle.core.io.IOTools;
+import org.freeticks.lob.OffHeapBook;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.freeticks.BookJournalTest.assertSameBook;
+import static org.freeticks.BookJournalTest.drive;
+import static org.freeticks.OrderEvent.*;
+
+public class BookSnapshotTest
+{
+    @Test
+    public void restore_continues_book() throws Exception {
+        Path path = Files.createTempFile("book", ".snapshot");
+        try {
+            OffHeapBook book = OffHeapBook.builder()
+                    .range(-1000, 1000)
+                    .window(64)
+                    .build();
+            drive(book, 100_000);
+            book.place(1, -900, 1);     // level in overflow
+            book.snapshot(path);
+
+            ArrayList<OrderMessage> events = new ArrayList<>();
+            OffHeapBook.Builder params = OffHeapBook.builder()
+                    .indexCookies()
+                    .onEvent((evt, filled, active, price, id, cookie) -> events.add(new OrderMessage(evt,filled,active,price,id,cookie)));
+            OffHeapBook restored = OffHeapBook.restore(path, params);
+            assertSameBook(restored, book);
+            assertThat(restored.byCookie(1)).isEqualTo(book.head(-900));
+            // the snapshot's range stays with the restored book, not with params
+            assertThat(params.build().place(1, 50_000, 0)).isGreaterThanOrEqualTo(0);
+            events.clear();
+
+            drive(book, 100_000, 2);
+            drive(restored, 100_000, 2);
+            assertSameBook(restored, book);
+            assertThat(events).extracting(Order::evt).contains(PLACE, FILL, CANCEL);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void restore_checks_header() throws Exception {
+        Path path = Files.createTempFile("book", ".snapshot");
+        try {
+            Files.write(path, new byte[1024]);
+            OffHeapBook.restore(path);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void mapped_book_matches_direct() throws Exception {
+        Path dir = Files.createTempDirectory("book");
+        try {
+            MappedAllocator allocator = new MappedAllocator(dir);
+            OffHeapBook mapped = OffHeapBook.builder()
+                    .range(-1000, 1000)
+                    .window(64)
+                    .allocator(allocator)
+                    .build();
+            OffHeapBook direct = OffHeapBook.builder()
+                    .range(-1000, 1000)
+                    .window(64)
+                    .build();
+            drive(mapped, 100_000);
+            drive(direct, 100_000);
+            assertSameBook(mapped, direct);
+
+            // the arena is the first file, slot volume is its first field
+            long id = mapped.head(mapped.bid());
+            ByteBuffer arena = ByteBuffer.wrap(Files.readAllBytes(allocator.file(0))).order(ByteOrder.nativeOrder());
+            assertThat(arena.getLong((int) id * 64)).isEqualTo(mapped.volume(id));
+        } finally {
+            IOTools.deleteDirWithFiles(dir.toFile(), 2);
+        }
+    }
+}
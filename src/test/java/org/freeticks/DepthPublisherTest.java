@@ -0,0 +1,167 @@
+package org.freeticks;
+
+import net.openhft.chronicle.bytes.Bytes;
+import org.freeticks.lob.DepthPublisher;
+import org.freeticks.lob.OffHeapBook;
+import org.freeticks.lob.OrderEmitter;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.freeticks.OrderEvent.*;
+
+public class DepthPublisherTest
+{
+    // view of a consumer applying messages
+    static class View implements DepthPublisher.DepthHandler {
+        final TreeMap<Long, Long> levels = new TreeMap<>();
+        long seq;
+        long messages;
+
+        @Override
+        public void begin(int type, long seq) {
+            if(type == DepthPublisher.SNAPSHOT)
+                levels.clear();
+            else
+                assertThat(seq).isEqualTo(this.seq + 1);
+            this.seq = seq;
+            messages++;
+        }
+
+        @Override
+        public void level(long price, long volume) {
+            if(volume == 0)
+                levels.remove(price);
+            else
+                levels.put(price, volume);
+        }
+
+        void read(Bytes<?> in) {
+            while(DepthPublisher.read(in, this))
+                ;
+        }
+    }
+
+    static TreeMap<Long, Long> top(OffHeapBook book, int depth) {
+        TreeMap<Long, Long> top = new TreeMap<>();
+        LevelCursor levels = book.levelCursor();
+        int n = 0;
+        for(levels.bids(); n < depth && levels.next(); n++)
+            top.put(levels.price(), levels.volume());
+        n = 0;
+        for(levels.asks(); n < depth && levels.next(); n++)
+            top.put(levels.price(), levels.volume());
+        return top;
+    }
+
+    @Test
+    public void deltas_follow_top_of_book() {
+        Bytes<?> out = Bytes.allocateElasticDirect();
+        DepthPublisher publisher = new DepthPublisher(5, out);
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .window(64)
+                .depth(publisher)
+                .build();
+        View view = new View();
+        long[] commands = new long[1];
+
+        OrderEmitter emitter = new OrderEmitter.Builder()
+                .random(new Random(1))
+                .onEvent((evt, volume, price, time) -> {
+                    long id = -1;
+                    if(evt == CANCEL) {
+                        if(volume >= 0 && !book.hasBids() || volume < 0 && !book.hasAsks())
+                            return;
+                        id = volume > 0 ? book.head(book.bid()) : book.head(book.ask());
+                    }
+                    book.dispatch(evt, volume, price, id, time, OrderType.GTC);
+                    commands[0]++;
+                })
+                .build();
+        for(int i = 0; i < 100_000; i++) {
+            emitter.run();
+            view.read(out);
+            assertThat(view.levels).isEqualTo(top(book, 5));
+        }
+        assertThat(view.messages).isGreaterThan(0).isLessThanOrEqualTo(commands[0]);
+        assertThat(view.seq).isEqualTo(publisher.seq());
+
+        // changes below the top 5 are not visible
+        long bid = book.bid();
+        for(int i = 1; i <= 10; i++)
+            book.dispatch(PLACE, 1, bid - i, -1, 0, OrderType.GTC);
+        long seq = publisher.seq();
+        book.dispatch(PLACE, 1, bid - 8, -1, 0, OrderType.GTC);
+        book.dispatch(PLACE, 1, bid - 20, -1, 0, OrderType.GTC);
+        assertThat(publisher.seq()).isEqualTo(seq);
+        book.dispatch(PLACE, 1, bid - 2, -1, 0, OrderType.GTC);
+        assertThat(publisher.seq()).isEqualTo(seq + 1);
+        out.release();
+    }
+
+    // batches touch more prices than the dirty sets hold, single placements cross and empty levels
+    @Test
+    public void batches_and_sweeps_follow_top_of_book() {
+        Bytes<?> out = Bytes.allocateElasticDirect();
+        Bytes<?> in = Bytes.allocateElasticDirect();
+        Bytes<?> events = Bytes.allocateElasticDirect();
+        DepthPublisher publisher = new DepthPublisher(5, out);
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .window(64)
+                .depth(publisher)
+                .build();
+        View view = new View();
+        Random random = new Random(3);
+        for(int i = 0; i < 2_000; i++) {
+            int n = random.nextInt(3) == 0 ? 1 + random.nextInt(40) : 0;
+            for(int j = 0; j < n; j++) {
+                long volume = 1 + random.nextInt(5);
+                long price = random.nextInt(60);
+                if(random.nextBoolean())
+                    OffHeapBook.writeCommand(in, PLACE, volume, -price, -1, 0, OrderType.GTC);
+                else
+                    OffHeapBook.writeCommand(in, PLACE, -volume, price, -1, 0, OrderType.GTC);
+            }
+            if(n > 0)
+                book.dispatchBatch(in, events);
+            else
+                book.place(random.nextBoolean() ? 30 : -30, random.nextInt(120) - 60, 0, OrderType.GTC);
+            in.clear();
+            events.clear();
+            view.read(out);
+            assertThat(view.levels).isEqualTo(top(book, 5));
+        }
+        assertThat(view.seq).isEqualTo(publisher.seq());
+        out.release();
+        in.release();
+        events.release();
+    }
+
+    @Test
+    public void late_joiner_catches_up() {
+        Bytes<?> out = Bytes.allocateElasticDirect();
+        DepthPublisher publisher = new DepthPublisher(10, out);
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .depth(publisher)
+                .build();
+        BookJournalTest.drive(book, 10_000);
+
+        Bytes<?> snapshot = Bytes.allocateElasticDirect();
+        publisher.snapshot(snapshot);
+        long resume = out.writePosition();
+        BookJournalTest.drive(book, 10_000, 2);
+
+        View late = new View();
+        late.read(snapshot);
+        out.readPosition(resume);
+        late.read(out);
+        assertThat(late.levels).isEqualTo(top(book, 10));
+        out.release();
+        snapshot.release();
+    }
+}
@@ -0,0 +1,66 @@
+package org.freeticks;
+
+import org.freeticks.lob.EventRing;
+import org.freeticks.lob.OffHeapBook;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.freeticks.BookJournalTest.drive;
+import static org.freeticks.OrderEvent.*;
+
+public class EventRingTest
+{
+    @Test
+    public void ring_gets_handler_events() {
+        ArrayList<OrderMessage> expected = new ArrayList<>();
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .onEvent((evt, filled, active, price, id, cookie) -> expected.add(new OrderMessage(evt, filled, active, price, id, cookie)))
+                .onError((evt, id, cookie) -> expected.add(new OrderMessage(evt, 0, 0, 0, id, cookie)))
+                .build();
+
+        ArrayList<OrderMessage> actual = new ArrayList<>();
+        EventRing ring = new EventRing(1 << 20);
+        OffHeapBook ringed = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .events(ring)
+                .build();
+
+        drive(book, 10_000);
+        drive(ringed, 10_000);
+        book.cancelByCookie(-1);
+        ringed.cancelByCookie(-1);
+
+        while(ring.drain((evt, filled, active, price, id, cookie) -> actual.add(new OrderMessage(evt, filled, active, price, id, cookie)), 256) > 0)
+            ;
+        assertThat(ring.isEmpty()).isTrue();
+        assertThat(actual).extracting(Order::evt).contains(PLACE, FILL, PARTFILL, CANCEL, REJECT_CANCEL);
+        assertThat(actual.toString()).isEqualTo(expected.toString());
+    }
+
+    @Test
+    public void consumer_thread_drains_full_ring() throws Exception {
+        EventRing ring = new EventRing(64);
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .events(ring)
+                .build();
+        long[] next = new long[1];
+        long[] misses = new long[1];
+        Thread consumer = new Thread(() -> {
+            while(next[0] < 10_000)
+                ring.drain((evt, filled, active, price, id, cookie) -> {
+                    if(cookie != next[0]++)
+                        misses[0]++;
+                }, 8);
+        });
+        consumer.start();
+        for(long cookie = 0; cookie < 10_000; cookie++)
+            book.place(1, 100, cookie);    // waits on the consumer every 64 places
+        consumer.join();
+        assertThat(misses[0]).isEqualTo(0);
+        assertThat(ring.isEmpty()).isTrue();
+    }
+}
@@ -0,0 +1,196 @@
+package org.freeticks;
+
+import org.freeticks.lob.CommandRing;
+import org.freeticks.lob.MatchingLoop;
+import org.freeticks.lob.OffHeapBook;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import pl.wavesoftware.jmh.junit.utilities.JavaAgentSkip;
+import pl.wavesoftware.jmh.junit.utilities.JmhCleaner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.freeticks.OrderEvent.*;
+
+public class MatchingLoopTest
+{
+    @ClassRule
+    public static RuleChain chain = RuleChain
+            .outerRule(new JmhCleaner(MatchingLoopTest.class))
+            .around(JavaAgentSkip.ifPresent());
+
+    // every producer places crossing pairs, the book ends empty with one fill per pair
+    static long run(int producers, boolean singleProducer) throws Exception {
+        long[] fills = new long[1];
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .onEvent((evt, filled, active, price, id, cookie) -> {
+                    if(evt == FILL && active != 0)
+                        fills[0]++;
+                })
+                .build();
+        MatchingLoop loop = MatchingLoop.of(book, new CommandRing(64, singleProducer)).start();
+        Thread[] threads = new Thread[producers];
+        for(int p = 0; p < producers; p++) {
+            long first = p * 10_000L;
+            threads[p] = new Thread(() -> {
+                for(long cookie = first; cookie < first + 10_000; cookie++) {
+                    loop.dispatch(PLACE, 0, 1, 100, 0, cookie, OrderType.GTC);
+                    loop.dispatch(PLACE, 0, -1, 100, 0, cookie, OrderType.GTC);
+                }
+            });
+            threads[p].start();
+        }
+        for(Thread thread : threads)
+            thread.join();
+        loop.close();
+        assertThat(book.size()).isEqualTo(0);
+        return fills[0];
+    }
+
+    @Test
+    public void single_producer() throws Exception {
+        assertThat(run(1, true)).isEqualTo(10_000);
+    }
+
+    @Test
+    public void many_producers() throws Exception {
+        assertThat(run(4, false)).isEqualTo(40_000);
+    }
+
+    // a command the book throws on is rejected and the loop handles the ones after it
+    @Test
+    public void bad_command_rejected() throws Exception {
+        ArrayList<OrderMessage> errors = new ArrayList<>();
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .onError((evt, id, cookie) -> errors.add(new OrderMessage(evt, 0, 0, 0, id, cookie)))
+                .build();
+        MatchingLoop loop = MatchingLoop.of(book, new CommandRing(16)).start();
+        loop.dispatch(-1, 0, 1, 100, 7, 1, OrderType.GTC);
+        loop.dispatch(PLACE, 0, 1, 100, 0, 2, OrderType.GTC);
+        loop.close();
+        assertThat(errors).flatExtracting(Order::evt, Order::id, Order::cookie).containsExactly(REJECT, (long)7, (long)1);
+        assertThat(book.bids().toArray()).containsExactly(100);
+    }
+
+    // one matching thread behind a ring offered to by every benchmark thread
+    @State(Scope.Benchmark)
+    public static class Matcher {
+        MatchingLoop loop;
+
+        boolean singleProducer() {
+            return false;
+        }
+
+        @Setup(Level.Trial)
+        public void setup() {
+            OffHeapBook book = OffHeapBook.builder()
+                    .range(-1000, 1000)
+                    .onEvent((evt, filled, active, price, id, cookie) -> {})
+                    .build();
+            loop = MatchingLoop.of(book, new CommandRing(65536, singleProducer())).start();
+        }
+
+        @TearDown(Level.Iteration)
+        public void flush() {
+            loop.flush();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            loop.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SingleMatcher extends Matcher {
+        @Override
+        boolean singleProducer() {
+            return true;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        long cookie;
+    }
+
+    public static final int BATCH = 10000;
+
+    static void produce(Matcher matcher, Producer producer) {
+        MatchingLoop loop = matcher.loop;
+        for(int i = 0; i < BATCH; i += 2) {
+            long cookie = producer.cookie++;
+            loop.dispatch(PLACE, 0, 1, 100 + (i & 7), 0, cookie, OrderType.GTC);
+            loop.dispatch(PLACE, 0, -1, 100, 0, cookie, OrderType.GTC);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(BATCH)
+    @Threads(1)
+    public void producers1Single(SingleMatcher matcher, Producer producer) {
+        produce(matcher, producer);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(BATCH)
+    @Threads(1)
+    public void producers1(Matcher matcher, Producer producer) {
+        produce(matcher, producer);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(BATCH)
+    @Threads(2)
+    public void producers2(Matcher matcher, Producer producer) {
+        produce(matcher, producer);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(BATCH)
+    @Threads(4)
+    public void producers4(Matcher matcher, Producer producer) {
+        produce(matcher, producer);
+    }
+
+    @Test
+    public void bench() throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(this.getClass().getName() + ".*")
+                .warmupTime(TimeValue.seconds(1))
+                .warmupIterations(3)
+                .measurementTime(TimeValue.seconds(1))
+                .measurementIterations(3)
+                .forks(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .build();
+
+        Collection<RunResult> results = new Runner(opt).run();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new MatchingLoopTest().bench();
+    }
+}
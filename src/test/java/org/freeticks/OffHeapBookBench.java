@@ -0,0 +1,896 @@
+package org.freeticks;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.core.io.IOTools;
+import org.freeticks.lob.BookJournal;
+import org.freeticks.lob.DepthPublisher;
+import org.freeticks.lob.EventRecord;
+import org.freeticks.lob.OffHeapBook;
+import org.freeticks.lob.OrderFeed;
+import org.freeticks.lob.TopOfBook;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import pl.wavesoftware.jmh.junit.utilities.JavaAgentSkip;
+import pl.wavesoftware.jmh.junit.utilities.JmhCleaner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OffHeapBookBench
+{
+    @ClassRule
+    public static RuleChain chain = RuleChain
+            .outerRule(new JmhCleaner(OffHeapBookBench.class))
+            .around(JavaAgentSkip.ifPresent());
+
+    public static final int CAPACITY = OffHeapBook.ARENA_SIZE;
+
+    // book filled to given percentage of the arena, resting bids below 0 and asks above 0, levels -5000 and 5000 left empty
+    @State(Scope.Thread)
+    public static class Arena {
+        @Param({"10", "50", "90", "99"})
+        public int fill;
+
+        OffHeapBook book;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .build();
+            long orders = (long) CAPACITY * fill / 100;
+            for(long i = 0; i < orders; i++) {
+                long level = 1 + (i / 2) % 1000;
+                if ((i & 1) == 0)
+                    book.place(1, -level, cookie++);
+                else
+                    book.place(-1, level, cookie++);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long placeCancel(Arena arena) {
+        OffHeapBook book = arena.book;
+        long id = book.place(1, -5000, arena.cookie);
+        return book.cancel(id, arena.cookie++);
+    }
+
+    // half full book in direct memory or in files mapped by MappedAllocator
+    @State(Scope.Thread)
+    public static class Memory {
+        @Param({"direct", "mapped"})
+        public String memory;
+
+        OffHeapBook book;
+        Path dir;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("book");
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .allocator(memory.equals("mapped") ? new MappedAllocator(dir) : Allocator.DIRECT)
+                    .build();
+            for(long i = 0; i < CAPACITY / 2; i++) {
+                long level = 1 + (i / 2) % 1000;
+                if ((i & 1) == 0)
+                    book.place(1, -level, cookie++);
+                else
+                    book.place(-1, level, cookie++);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            IOTools.deleteDirWithFiles(dir.toFile(), 2);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long placeCancelMemory(Memory memory) {
+        OffHeapBook book = memory.book;
+        long id = book.place(1, -5000, memory.cookie);
+        return book.cancel(id, memory.cookie++);
+    }
+
+    // packet of crossing bid and ask pairs, decoded and dispatched in one call or command by command
+    @State(Scope.Thread)
+    public static class Packet {
+        public static final int COMMANDS = 64;
+
+        @Param({"false", "true"})
+        public boolean journaled;
+
+        OffHeapBook book;
+        BookJournal journal;
+        Path dir;
+        Bytes<?> in;
+        Bytes<?> out;
+        long[] events = new long[1];
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            if(journaled) {
+                dir = Files.createTempDirectory("packet");
+                journal = new BookJournal(dir);
+            }
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .onEvent((evt, filled, active, price, id, cookie) -> events[0]++)
+                    .journal(journal)
+                    .build();
+            in = Bytes.allocateElasticDirect(COMMANDS * OffHeapBook.COMMAND_SIZE);
+            out = Bytes.allocateElasticDirect(4 * COMMANDS * OffHeapBook.EVENT_SIZE);
+            for(int i = 0; i < COMMANDS; i += 2) {
+                OffHeapBook.writeCommand(in, OrderEvent.PLACE, 1, 100, 0, i, OrderType.GTC);
+                OffHeapBook.writeCommand(in, OrderEvent.PLACE, -1, 100, 0, i, OrderType.GTC);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            in.release();
+            out.release();
+            if(journal != null) {
+                journal.close();
+                IOTools.deleteDirWithFiles(dir.toFile(), 2);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(Packet.COMMANDS)
+    public int dispatchBatch(Packet packet) {
+        packet.in.readPosition(0);
+        packet.out.clear();
+        return packet.book.dispatchBatch(packet.in, packet.out);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(Packet.COMMANDS)
+    public long dispatchEach(Packet packet) {
+        Bytes<?> in = packet.in;
+        OffHeapBook book = packet.book;
+        long last = 0;
+        for(long at = 0; at < in.writePosition(); at += OffHeapBook.COMMAND_SIZE)
+            last = book.dispatch(in.readInt(at), in.readLong(at + 8), in.readLong(at + 16), in.readLong(at + 24),
+                    in.readLong(at + 32), in.readLong(at + 40));
+        return last;
+    }
+
+    // resting orders read through the arena view or copied by get, and their PLACE records read through EventRecord
+    @State(Scope.Thread)
+    public static class Views {
+        public static final int ORDERS = 1024;
+
+        OffHeapBook book;
+        OffHeapBook.OrderView view;
+        EventRecord record = new EventRecord();
+        Bytes<?> events;
+        long id;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .capacity(ORDERS)
+                    .range(-10000, 10000)
+                    .build();
+            Bytes<?> in = Bytes.allocateElasticDirect();
+            for(int i = 0; i < ORDERS; i++)
+                OffHeapBook.writeCommand(in, OrderEvent.PLACE, 1, -1 - i % 100, 0, i, OrderType.GTC);
+            events = Bytes.allocateElasticDirect();
+            book.dispatchBatch(in, events);
+            in.release();
+            view = book.view();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            events.release();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long orderView(Views views) {
+        OrderFields order = views.view.wrap(views.id++ & (Views.ORDERS - 1));
+        return order.active() + order.price() + order.cookie();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Order orderCopy(Views views) {
+        return views.book.get(views.id++ & (Views.ORDERS - 1));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long eventRecord(Views views) {
+        long offset = (views.id++ & (Views.ORDERS - 1)) * OffHeapBook.EVENT_SIZE;
+        OrderFields order = views.record.wrap(views.events, offset);
+        return order.evt() + order.active() + order.price() + order.cookie();
+    }
+
+    // 1000 bid levels of two orders each, walked to depth by cursors or by streams
+    @State(Scope.Thread)
+    public static class Depth {
+        @Param({"5", "50", "1000"})
+        public int depth;
+
+        OffHeapBook book;
+        LevelCursor levels;
+        OrderCursor orders;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .build();
+            for(int i = 0; i < 2000; i++)
+                book.place(1, -1 - i / 2, i);
+            levels = book.levelCursor();
+            orders = book.orderCursor();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long depthCursor(Depth depth) {
+        long sum = 0;
+        int n = 0;
+        for(LevelCursor levels = depth.levels.bids(); n < depth.depth && levels.next(); n++) {
+            sum += levels.volume();
+            for(OrderCursor orders = depth.orders.at(levels.price()); orders.next(); )
+                sum += orders.cookie();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long depthStream(Depth depth) {
+        OffHeapBook book = depth.book;
+        return book.bids()
+                .limit(depth.depth)
+                .map(price -> book.levels().volume(price) + book.orders(price).map(book::cookie).sum())
+                .sum();
+    }
+
+    // 1000 levels a side published to depth 10 or 100, changed at the touch or 500 levels away
+    @State(Scope.Thread)
+    public static class Feed {
+        @Param({"1", "500"})
+        public int level;
+        @Param({"10", "100"})
+        public int depth;
+
+        OffHeapBook book;
+        Bytes<?> out;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            out = Bytes.allocateElasticDirect();
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .depth(new DepthPublisher(depth, out))
+                    .build();
+            for(int i = 1; i <= 1000; i++) {
+                book.dispatch(OrderEvent.PLACE, 1, -i, -1, cookie++, OrderType.GTC);
+                book.dispatch(OrderEvent.PLACE, -1, i, -1, cookie++, OrderType.GTC);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            out.release();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long feedPlaceCancel(Feed feed) {
+        OffHeapBook book = feed.book;
+        feed.out.clear();
+        long id = book.dispatch(OrderEvent.PLACE, 1, -feed.level, -1, feed.cookie, OrderType.GTC);
+        return book.dispatch(OrderEvent.CANCEL, 0, 0, id, feed.cookie++, OrderType.GTC);
+    }
+
+    // half full book sending its events to no handler, to a market by order feed flushed after every command,
+    // or to one flushed every OrderFeed.BATCH messages like a feed thread draining an event ring
+    @State(Scope.Thread)
+    public static class Orders {
+        @Param({"none", "feed", "batched"})
+        public String handler;
+
+        OffHeapBook book;
+        OrderFeed feed;
+        Path dir;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("feed");
+            OffHeapBook.Builder builder = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000);
+            if(!handler.equals("none"))
+                feed = new OrderFeed(dir);
+            if(handler.equals("feed"))
+                builder.orders(feed);
+            else
+                builder.onEvent(feed);
+            book = builder.build();
+            for(long i = 0; i < CAPACITY / 2; i++) {
+                long level = 1 + (i / 2) % 1000;
+                if ((i & 1) == 0)
+                    book.place(1, -level, cookie++);
+                else
+                    book.place(-1, level, cookie++);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if(feed != null)
+                feed.close();
+            IOTools.deleteDirWithFiles(dir.toFile(), 10);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long feedOrders(Orders orders) {
+        OffHeapBook book = orders.book;
+        long id = book.dispatch(OrderEvent.PLACE, 1, -5000, -1, orders.cookie, OrderType.GTC);
+        return book.dispatch(OrderEvent.CANCEL, 0, 0, id, orders.cookie++, OrderType.GTC);
+    }
+
+    // half full book with or without a top of book slot, the benchmark changes the top with every command
+    @State(Scope.Thread)
+    public static class Top {
+        @Param({"none", "top"})
+        public String top;
+
+        OffHeapBook book;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            OffHeapBook.Builder builder = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000);
+            if(top.equals("top"))
+                builder.top(new TopOfBook());
+            book = builder.build();
+            for(long i = 0; i < CAPACITY / 2; i++) {
+                long level = 1 + (i / 2) % 1000;
+                if ((i & 1) == 0)
+                    book.place(1, -level, cookie++);
+                else
+                    book.place(-1, level, cookie++);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long topPlaceCancel(Top top) {
+        OffHeapBook book = top.book;
+        long id = book.dispatch(OrderEvent.PLACE, 1, 0, -1, top.cookie, OrderType.GTC);
+        return book.dispatch(OrderEvent.CANCEL, 0, 0, id, top.cookie++, OrderType.GTC);
+    }
+
+    // 1000 levels of volume 1 a side, queried by walking the levels or from cumulative sums
+    @State(Scope.Thread)
+    public static class Sweep {
+        @Param({"walk", "cumulative"})
+        public String sums;
+
+        @Param({"10", "500"})
+        public int levels;
+
+        OffHeapBook book;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            OffHeapBook.Builder builder = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000);
+            if(sums.equals("cumulative"))
+                builder.cumulative();
+            book = builder.build();
+            for(int i = 1; i <= 1000; i++) {
+                book.place(1, -i, cookie++);
+                book.place(-1, i, cookie++);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long sweepQueries(Sweep sweep) {
+        OffHeapBook book = sweep.book;
+        return book.sweepCost(sweep.levels) + book.priceForVolume(-sweep.levels) + book.volumeWithin(sweep.levels);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long sweepPlaceCancel(Sweep sweep) {
+        OffHeapBook book = sweep.book;
+        long id = book.place(1, -sweep.levels, sweep.cookie);
+        return book.cancel(id, sweep.cookie++);
+    }
+
+    // one order far from the touch on each side, repairing best prices has to skip the gap
+    @State(Scope.Thread)
+    public static class Sparse {
+        @Param({"10", "1000", "90000"})
+        public long gap;
+
+        OffHeapBook book;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .range(-100000, 100000)
+                    .build();
+            book.place(1, -gap, cookie++);
+            book.place(-1, gap, cookie++);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long sparseRepair(Sparse sparse) {
+        OffHeapBook book = sparse.book;
+        long bid = book.place(1, 0, sparse.cookie++);
+        long ask = book.place(-1, 1, sparse.cookie++);
+        book.cancel(bid, 0);
+        return book.cancel(ask, 0);
+    }
+
+    // single price queue of given depth, every cancel hits a different position in it
+    @State(Scope.Thread)
+    public static class Queue {
+        @Param({"1", "10", "100", "1000", "10000"})
+        public int depth;
+
+        OffHeapBook book;
+        long[] ids;
+        int pos;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .range(-10000, 10000)
+                    .build();
+            ids = new long[depth];
+            for(int i = 0; i < depth; i++)
+                ids[i] = book.place(1, -1, cookie++);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long cancelInQueue(Queue queue) {
+        OffHeapBook book = queue.book;
+        int pos = queue.pos;
+        long left = book.cancel(queue.ids[pos], 0);
+        queue.ids[pos] = book.place(1, -1, queue.cookie++);
+        queue.pos = (pos * 7 + 1) % queue.depth;
+        return left;
+    }
+
+    // book of given depth of resting orders that do not expire, one expiring order per invocation
+    @State(Scope.Thread)
+    public static class Expiry {
+        @Param({"100", "10000", "60000"})
+        public int depth;
+
+        OffHeapBook book;
+        long time;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .range(-10000, 10000)
+                    .build();
+            for(int i = 0; i < depth; i++)
+                book.place(1, -1 - i % 1000, i, OrderType.GTC);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int expireOne(Expiry expiry) {
+        OffHeapBook book = expiry.book;
+        long time = ++expiry.time;
+        book.place(-1, 1, time, time);
+        book.expire(time + 1);
+        return book.size();
+    }
+
+    // one order moved between two prices behind the touch, by amend or by cancel and place
+    @State(Scope.Thread)
+    public static class Amend {
+        OffHeapBook book;
+        long id;
+        long price = -10;
+        long volume = Long.MAX_VALUE / 2;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .range(-10000, 10000)
+                    .onEvent((evt, filled, active, price, id, cookie) -> {})
+                    .build();
+            for(int i = 0; i < 10000; i++)
+                book.place(1, -1 - i % 100, cookie++);
+            id = book.place(volume, price, cookie++);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long amendPrice(Amend amend) {
+        amend.price = amend.price == -10 ? -11 : -10;
+        return amend.book.amend(amend.id, amend.volume, amend.price);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long cancelPlacePrice(Amend amend) {
+        amend.price = amend.price == -10 ? -11 : -10;
+        amend.book.cancel(amend.id, amend.cookie);
+        return amend.id = amend.book.place(amend.volume, amend.price, amend.cookie);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long amendReduce(Amend amend) {
+        return amend.book.amend(amend.id, --amend.volume, amend.price);
+    }
+
+    // trades at the touch with stops waiting away from it, a trade checks only the nearest triggers
+    @State(Scope.Thread)
+    public static class Stops {
+        @Param({"0", "10000"})
+        public int stops;
+
+        OffHeapBook book;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .stops()
+                    .build();
+            for(long i = 0; i < CAPACITY / 2; i++) {
+                long level = 1 + (i / 2) % 1000;
+                if ((i & 1) == 0)
+                    book.place(1, -level, cookie++);
+                else
+                    book.place(-1, level, cookie++);
+            }
+            for(long i = 0; i < stops; i++) {
+                long level = 2000 + i % 1000;
+                if ((i & 1) == 0)
+                    book.placeStop(1, level, level, cookie++, OrderType.GTC);
+                else
+                    book.placeStop(-1, -level, OrderBook.NO_BID, cookie++, OrderType.GTC);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long stopsTrade(Stops stops) {
+        OffHeapBook book = stops.book;
+        book.place(-1, 0, stops.cookie++);
+        return book.place(1, 0, stops.cookie++);
+    }
+
+    // a clip of 1 taken at the touch and shown again: replenished in place or placed again by the client
+    @State(Scope.Thread)
+    public static class Iceberg {
+        @Param({"replace", "iceberg"})
+        public String clips;
+
+        OffHeapBook book;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .build();
+            for(long i = 0; i < CAPACITY / 2; i++) {
+                long level = 1 + (i / 2) % 1000;
+                if ((i & 1) == 0)
+                    book.place(1, -level, cookie++);
+                else
+                    book.place(-1, level, cookie++);
+            }
+            if(clips.equals("iceberg"))
+                book.placeIceberg(-Long.MAX_VALUE / 2, 1, 0, cookie++, OrderType.GTC);
+            else
+                book.place(-1, 0, cookie++);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long icebergClip(Iceberg iceberg) {
+        OffHeapBook book = iceberg.book;
+        long id = book.place(1, 0, iceberg.cookie++);
+        if(!book.hasAsks() || book.ask() != 0)
+            id = book.place(-1, 0, iceberg.cookie++);
+        return id;
+    }
+
+    // 100 orders following the best bid while it moves up a tick and back: pegs repriced by the book, or
+    // limit orders cancelled and placed again by the client
+    @State(Scope.Thread)
+    public static class Pegs {
+        @Param({"replace", "peg"})
+        public String follow;
+
+        OffHeapBook book;
+        long[] ids = new long[100];
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .build();
+            for(long i = 0; i < CAPACITY / 2; i++) {
+                long level = 1 + (i / 2) % 1000;
+                if ((i & 1) == 0)
+                    book.place(1, -level, cookie++);
+                else
+                    book.place(-1, level, cookie++);
+            }
+            for(int i = 0; i < ids.length; i++)
+                ids[i] = follow.equals("peg")
+                        ? book.placePeg(1, OrderType.PEG_PRIMARY, -i % 10, cookie++, OrderType.GTC)
+                        : book.place(1, -1 - i % 10, cookie++);
+        }
+
+        void follow(long bid) {
+            if(follow.equals("peg"))
+                return;
+            for(int i = 0; i < ids.length; i++) {
+                book.cancel(ids[i], 0);
+                ids[i] = book.place(1, bid - i % 10, cookie++);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long pegsFollow(Pegs pegs) {
+        OffHeapBook book = pegs.book;
+        long id = book.place(1, 0, pegs.cookie++);
+        pegs.follow(0);
+        book.cancel(id, 0);
+        pegs.follow(-1);
+        return id;
+    }
+
+    // fill or kill buying one lot more than the crossed levels hold, rejected by the check before matching
+    @State(Scope.Thread)
+    public static class Fok {
+        @Param({"walk", "cumulative"})
+        public String sums;
+
+        @Param({"1", "10", "100"})
+        public int crossed;
+
+        OffHeapBook book;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            OffHeapBook.Builder builder = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000);
+            if(sums.equals("cumulative"))
+                builder.cumulative();
+            book = builder.build();
+            for(int i = 1; i <= 1000; i++) {
+                book.place(1, -i, cookie++);
+                book.place(-1, i, cookie++);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long fokReject(Fok fok) {
+        return fok.book.place(fok.crossed + 1, fok.crossed, fok.cookie++, OrderType.GTC, OrderType.FOK, 0);
+    }
+
+    // a buy of 10 sweeping 10 resting lots of another owner, with self-trade prevention one owner compare per fill
+    @State(Scope.Thread)
+    public static class Stp {
+        @Param({"none", "decrement"})
+        public String mode;
+
+        OffHeapBook book;
+        long cookie;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            book = OffHeapBook.builder()
+                    .capacity(CAPACITY)
+                    .range(-10000, 10000)
+                    .selfTrade(mode.equals("none") ? OffHeapBook.STP_NONE : OffHeapBook.STP_DECREMENT_BOTH)
+                    .build();
+            for(int i = 1; i <= 1000; i++) {
+                book.place(1, -i, cookie++);
+                book.place(-1, i, cookie++);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long stpSweep(Stp stp) {
+        OffHeapBook book = stp.book;
+        book.placeOwner(2);
+        for(int i = 0; i < 10; i++)
+            book.place(-1, 0, stp.cookie++);
+        book.placeOwner(1);
+        return book.place(10, 0, stp.cookie++);
+    }
+
+    // book of 1M resting orders over 2000 levels written to and read back from a snapshot file
+    @State(Scope.Thread)
+    public static class Snapshot {
+        OffHeapBook book;
+        Path path;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            book = OffHeapBook.builder()
+                    .capacity(1 << 20)
+                    .range(-10000, 10000)
+                    .build();
+            for(int i = 0; i < 1_000_000; i++) {
+                long level = 1 + (i / 2) % 1000;
+                if ((i & 1) == 0)
+                    book.place(1, -level, i, i);
+                else
+                    book.place(-1, level, i, OrderType.GTC);
+            }
+            path = Files.createTempFile("book", ".snapshot");
+            book.snapshot(path);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.delete(path);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Path snapshot(Snapshot snapshot) throws IOException {
+        snapshot.book.snapshot(snapshot.path);
+        return snapshot.path;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public OffHeapBook restore(Snapshot snapshot) throws IOException {
+        return OffHeapBook.restore(snapshot.path);
+    }
+
+    @Test
+    public void bench() throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(this.getClass().getName() + ".*")
+                .warmupTime(TimeValue.seconds(1))
+                .warmupIterations(3)
+                .measurementTime(TimeValue.seconds(1))
+                .measurementIterations(3)
+                .forks(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .build();
+
+        Collection<RunResult> results = new Runner(opt).run();
+    }
+
+    // flyweight reads allocate nothing
+    @Test
+    public void allocBench() throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(this.getClass().getName() + ".(orderView|orderCopy|eventRecord|depthCursor)$")
+                .warmupTime(TimeValue.seconds(1))
+                .warmupIterations(3)
+                .measurementTime(TimeValue.seconds(1))
+                .measurementIterations(3)
+                .forks(1)
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true)
+                .build();
+
+        for(RunResult result : new Runner(opt).run()) {
+            String name = result.getParams().getBenchmark();
+            if(name.endsWith("orderCopy"))
+                continue;
+            result.getSecondaryResults().forEach((label, alloc) -> {
+                if(label.endsWith("gc.alloc.rate.norm"))
+                    assertThat(alloc.getScore()).as(name).isLessThan(1.0);
+            });
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new OffHeapBookBench().bench();
+    }
+}
@@ -1,13 +1,18 @@
 package org.freeticks;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.freeticks.OrderEvent.*;
 
 import com.google.common.collect.Iterables;
+import net.openhft.chronicle.bytes.Bytes;
+import org.freeticks.lob.EventRecord;
 import org.freeticks.lob.OffHeapBook;
 import org.freeticks.lob.OrderEmitter;
 import org.junit.ClassRule;
@@ -46,12 +51,16 @@ public class OrderBookTest
             .around(JavaAgentSkip.ifPresent());
 
     OffHeapBook book(ArrayList<OrderMessage> events) {
-        OffHeapBook book = OffHeapBook.builder()
+        return book(events, OffHeapBook.builder());
+    }
+
+    // book of builder's options in the same range, events and errors go to events
+    OffHeapBook book(ArrayList<OrderMessage> events, OffHeapBook.Builder builder) {
+        return builder
                 .range(-10000,10000)
                 .onEvent((evt, filled, active, price, id, cookie) -> events.add(new OrderMessage(evt,filled,active,price,id,cookie)))
                 .onError((evt, id, cookie) -> events.add(new OrderMessage(evt,0,0,0,id,cookie)))
                 .build();
-        return book;
     }
 
     @Test
@@ -261,6 +270,896 @@ public class OrderBookTest
     }
 
 
+    @Test
+    public void cancel_inside_queue() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events);
+
+        long a = book.place(1,     100,    1);
+        long b = book.place(2,     100,    2);
+        long c = book.place(3,     100,    3);
+
+        book.cancel(b, 2);
+        assertThat(book.orders(100).toArray()).containsExactly(a, c);
+        assertThat(book.bidVolume()).isEqualTo(4);
+
+        book.cancel(c, 3);
+        assertThat(book.orders(100).toArray()).containsExactly(a);
+        assertThat(book.bidVolume()).isEqualTo(1);
+
+        long d = book.place(4,     100,    4);
+        assertThat(book.orders(100).toArray()).containsExactly(a, d);
+
+        book.cancel(a, 1);
+        assertThat(book.orders(100).toArray()).containsExactly(d);
+        assertThat(book.bidVolume()).isEqualTo(4);
+
+        events.clear();
+        long e = book.place(-4, 100, 5);
+        assertThat(events).flatExtracting(Order::evt, Order::id).containsExactly(FILL, d, FILL, e);
+        assertThat(book.hasBids()).isFalse();
+        assertThat(book.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void fill_keeps_level_volume() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events);
+
+        book.place(10,     100,        555);
+        book.place(20,     100,        777);
+        book.place(-10,    100,        666);
+        assertThat(book.bidVolume()).isEqualTo(20);
+
+        book.place(-5,     100,        888);
+        assertThat(book.bidVolume()).isEqualTo(15);
+    }
+
+    @Test
+    public void sparse_levels() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events);
+
+        long bid100 = book.place(10,    100,    1);
+        book.place(5,       50,     2);
+        book.place(7,       -9000,  3);
+        book.place(-3,      200,    4);
+        book.place(-4,      9000,   5);
+
+        assertThat(book.bids().toArray()).containsExactly(100, 50, -9000);
+        assertThat(book.asks().toArray()).containsExactly(200, 9000);
+        assertThat(book.low()).isEqualTo(-9000);
+        assertThat(book.high()).isEqualTo(9000);
+
+        book.cancel(bid100, 1);
+        assertThat(book.bid()).isEqualTo(50);
+
+        book.place(7, 9000, 6);
+        assertThat(book.hasAsks()).isFalse();
+        assertThat(book.high()).isEqualTo(50);
+        assertThat(book.bids().toArray()).containsExactly(50, -9000);
+
+        book.place(-12, -9000, 7);
+        assertThat(book.hasBids()).isFalse();
+        assertThat(book.size()).isEqualTo(0);
+        assertThat(book.low()).isEqualTo(OrderBook.NO_ASK);
+        assertThat(book.high()).isEqualTo(OrderBook.NO_BID);
+    }
+
+    @Test
+    public void window_slides() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events, OffHeapBook.builder().window(100));
+
+        book.place(1,       -5000,  1);
+        book.place(2,       10,     2);
+        book.place(-3,      5000,   3);
+        book.place(-4,      200000, 4);
+
+        assertThat(book.bids().toArray()).containsExactly(10, -5000);
+        assertThat(book.asks().toArray()).containsExactly(5000, 200000);
+        assertThat(book.low()).isEqualTo(-5000);
+        assertThat(book.high()).isEqualTo(200000);
+        assertThat(book.levels().volume(-5000)).isEqualTo(1);
+
+        book.place(-5, -5000, 5);
+        assertThat(book.hasBids()).isFalse();
+        assertThat(book.asks().toArray()).containsExactly(-5000, 5000, 200000);
+        assertThat(book.levels().volume(-5000)).isEqualTo(-2);
+
+        book.place(9, 200000, 6);
+        assertThat(book.hasAsks()).isFalse();
+        assertThat(book.size()).isEqualTo(0);
+        assertThat(book.low()).isEqualTo(OrderBook.NO_ASK);
+        assertThat(book.high()).isEqualTo(OrderBook.NO_BID);
+
+        // levels outside of the window are limited by the overflow capacity
+        book.place(1, 0, 7);
+        for(int i = 0; i < OffHeapBook.MAX_PRICE_LEVELS; i++)
+            assertThat(book.place(1, -1000 - i, 8 + i)).isGreaterThanOrEqualTo(0);
+        events.clear();
+        assertThat(book.place(1, -5000, 999)).isEqualTo(-1);
+        assertThat(events).flatExtracting(Order::evt, Order::cookie).containsExactly(REJECT, (long)999);
+        assertThat(book.place(1, -1000, 1000)).isGreaterThanOrEqualTo(0);
+    }
+
+    @Test
+    public void overflow_full_after_sweep() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events, OffHeapBook.builder().window(64));
+
+        // the reserve of an iceberg opening a level in overflow is kept by that level only
+        long ice = book.placeIceberg(-6, 2, 5000, 1, OrderType.GTC);
+        assertThat(book.hiddenVolume(5000)).isEqualTo(-4);
+        assertThat(book.hiddenVolume(6000)).isEqualTo(0);
+        book.cancel(ice, 1);
+        assertThat(book.hiddenVolume(5000)).isEqualTo(0);
+
+        book.place(-1, 10, 2);
+        for(int i = 0; i < OffHeapBook.MAX_PRICE_LEVELS; i++)
+            assertThat(book.place(-1, 1000 + i, 3 + i)).isGreaterThanOrEqualTo(0);
+        assertThat(book.place(1, -1000, 2000)).isEqualTo(-1);
+
+        // the sweep moves the window up to the next ask, the rest moves it back and spills the asks again
+        events.clear();
+        long bid = book.place(2, 31, 2001);
+        assertThat(events).flatExtracting(Order::evt).containsExactly(FILL, PARTFILL, PLACE);
+        assertThat(book.bid()).isEqualTo(31);
+        assertThat(book.bidVolume()).isEqualTo(1);
+        assertThat(book.ask()).isEqualTo(1000);
+        assertThat(book.asks().count()).isEqualTo(OffHeapBook.MAX_PRICE_LEVELS);
+        assertThat(book.asks().map(p -> book.levels().volume(p)).sum()).isEqualTo(-OffHeapBook.MAX_PRICE_LEVELS);
+
+        // the overflow is full again, new levels outside the window are rejected and the ones in it rest
+        events.clear();
+        assertThat(book.place(1, -1000, 2002)).isEqualTo(-1);
+        assertThat(book.place(-1, 5000, 2003)).isEqualTo(-1);
+        assertThat(events).flatExtracting(Order::evt).containsExactly(REJECT, REJECT);
+        assertThat(book.place(1, 0, 2004)).isGreaterThanOrEqualTo(0);
+        assertThat(book.bids().toArray()).containsExactly(31, 0);
+        assertThat(book.cancel(bid, 2001)).isEqualTo(0);
+        assertThat(book.bid()).isEqualTo(0);
+    }
+
+    @Test
+    public void expire_orders() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events);
+
+        long a = book.place(1,      100,    1,  50);
+        long b = book.place(2,      99,     2,  20);
+        long c = book.place(3,      98,     3,  OrderType.GTC);
+        long d = book.place(-4,     200,    4,  10);
+        long e = book.place(5,      97,     5,  30);
+        book.cancel(b, 2);
+        long f = book.place(6,      96,     6,  20);   // reuses the slot of b, its stale entry must not expire f
+
+        events.clear();
+        book.expire(25);
+        assertThat(events).flatExtracting(Order::evt, Order::id).containsExactlyInAnyOrder(CANCEL, d, CANCEL, f);
+        assertThat(book.hasAsks()).isFalse();
+        assertThat(book.bids().toArray()).containsExactly(100, 98, 97);
+
+        book.place(-2, 98, 7);     // fills a and a part of c
+        events.clear();
+        book.expire(100);
+        assertThat(events).flatExtracting(Order::evt, Order::id).containsExactly(CANCEL, e);
+        assertThat(book.bids().toArray()).containsExactly(98);
+        assertThat(book.size()).isEqualTo(1);
+        assertThat(book.head(98)).isEqualTo(c);
+    }
+
+    @Test
+    public void cookie_index() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events, OffHeapBook.builder().indexCookies());
+
+        long bid = book.place(10,   100,    555);
+        long ask = book.place(-10,  101,    666);
+        assertThat(book.byCookie(555)).isEqualTo(bid);
+        assertThat(book.byCookie(666)).isEqualTo(ask);
+
+        events.clear();
+        book.cancelByCookie(555);
+        assertThat(events).flatExtracting(Order::evt, Order::id, Order::cookie).containsExactly(CANCEL, bid, (long)555);
+        assertThat(book.byCookie(555)).isEqualTo(-1);
+
+        events.clear();
+        book.cancelByCookie(555);
+        assertThat(events).flatExtracting(Order::evt, Order::cookie).containsExactly(REJECT_CANCEL, (long)555);
+
+        long amended = book.amendByCookie(666, -4, 102);
+        assertThat(book.byCookie(666)).isEqualTo(amended);
+        assertThat(book.ask()).isEqualTo(102);
+        assertThat(book.askVolume()).isEqualTo(-4);
+
+        book.place(4, 102, 777);    // fills the amended order, nothing rests
+        assertThat(book.byCookie(666)).isEqualTo(-1);
+        assertThat(book.byCookie(777)).isEqualTo(-1);
+        assertThat(book.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void amend() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events);
+
+        long first = book.place(10,     100,    1);
+        long second = book.place(5,     100,    2);
+        long ask = book.place(-5,       105,    3);
+
+        events.clear();
+        assertThat(book.amend(second, 3, 100)).isEqualTo(second);
+        assertThat(events).flatExtracting(Order::evt, Order::active, Order::price, Order::id).containsExactly(AMEND, (long)3, (long)100, second);
+        assertThat(book.bidVolume()).isEqualTo(13);
+        assertThat(book.orders(100).toArray()).containsExactly(first, second);
+
+        book.amend(first, 4, 100);      // smaller keeps the place in the queue
+        assertThat(book.orders(100).toArray()).containsExactly(first, second);
+        book.amend(first, 6, 100);      // bigger goes to the tail
+        assertThat(book.orders(100).toArray()).containsExactly(second, first);
+        assertThat(book.bidVolume()).isEqualTo(9);
+
+        book.amend(second, 3, 101);
+        assertThat(book.bids().toArray()).containsExactly(101, 100);
+        assertThat(book.high()).isEqualTo(105);
+
+        events.clear();
+        book.amend(ask, -10, 100);      // crosses both bids, rest of it stays at 100
+        assertThat(events).flatExtracting(Order::evt, Order::id).containsExactly(
+                FILL, second, PARTFILL, ask, FILL, first, PARTFILL, ask, AMEND, ask);
+        assertThat(book.hasBids()).isFalse();
+        assertThat(book.ask()).isEqualTo(100);
+        assertThat(book.askVolume()).isEqualTo(-1);
+        assertThat(book.size()).isEqualTo(1);
+        assertThat(book.low()).isEqualTo(100);
+        assertThat(book.high()).isEqualTo(100);
+
+        events.clear();
+        assertThat(book.amend(ask, 5, 100)).isEqualTo(-1);
+        assertThat(book.amend(first, 5, 100)).isEqualTo(-1);
+        assertThat(events).flatExtracting(Order::evt, Order::id).containsExactly(REJECT_AMEND, ask, REJECT_AMEND, first);
+    }
+
+    @Test
+    public void reuse_slots() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events, OffHeapBook.builder().capacity(4));
+
+        long[] ids = new long[4];
+        for(int i = 0; i < ids.length; i++)
+            ids[i] = book.place(1, 100 - i, i);
+        assertThat(ids).containsExactly(0, 1, 2, 3);
+
+        events.clear();
+        assertThat(book.place(1, 90, 777)).isEqualTo(-1);
+        assertThat(events).flatExtracting(Order::evt, Order::cookie).containsExactly(REJECT, (long)777);
+
+        book.cancel(ids[2], 2);
+        assertThat(book.place(1, 90, 888)).isEqualTo(ids[2]);
+        assertThat(book.cookie(ids[2])).isEqualTo(888);
+        assertThat(book.size()).isEqualTo(4);
+    }
+
+    @Test
+    public void dispatch_batch() {
+        ArrayList<OrderMessage> expected = new ArrayList<>();
+        OffHeapBook book = book(expected);
+        OffHeapBook batched = OffHeapBook.builder()
+                .range(-10000,10000)
+                .build();
+
+        Bytes<?> in = Bytes.allocateElasticDirect();
+        Random random = new Random(1);
+        for(long cookie = 0; cookie < 10_000; cookie++) {
+            int evt = random.nextInt(4) == 0 ? CANCEL : PLACE;
+            long volume = (random.nextBoolean() ? 1 : -1) * (1 + random.nextInt(10));
+            long price = 90 + random.nextInt(20);
+            long id = random.nextInt(64);
+            book.dispatch(evt, volume, price, id, cookie, OrderType.GTC);
+            OffHeapBook.writeCommand(in, evt, volume, price, id, cookie, OrderType.GTC);
+        }
+        in.writeInt(PLACE);     // partial command stays in the input
+
+        Bytes<?> out = Bytes.allocateElasticDirect(64);
+        assertThat(batched.dispatchBatch(in, out)).isEqualTo(10_000);
+        assertThat(in.readRemaining()).isEqualTo(4);
+        assertThat(out.readRemaining()).isEqualTo(expected.size() * OffHeapBook.EVENT_SIZE);
+
+        ArrayList<OrderMessage> actual = new ArrayList<>();
+        EventRecord record = new EventRecord();
+        while(record.read(out))
+            actual.add(new OrderMessage(record.evt(), record.filled(), record.active(), record.price(), record.id(), record.cookie()));
+        assertThat(actual).extracting(Order::evt).contains(PLACE, FILL, PARTFILL, CANCEL, REJECT_CANCEL);
+        assertThat(actual.toString()).isEqualTo(expected.toString());
+        assertThat(batched.bids().toArray()).containsExactly(book.bids().toArray());
+        assertThat(batched.asks().toArray()).containsExactly(book.asks().toArray());
+
+        OffHeapBook.OrderView view = batched.view().wrap(batched.head(batched.bid()));
+        assertThat(view.price()).isEqualTo(batched.bid());
+        assertThat(view.active()).isEqualTo(book.get(view.id()).active());
+        assertThat(view.cookie()).isEqualTo(book.get(view.id()).cookie());
+        in.release();
+        out.release();
+    }
+
+    @Test
+    public void cursors_walk_like_streams() {
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .window(64)
+                .build();
+        BookJournalTest.drive(book, 100_000);
+        book.place(1, -900, 1);     // level in overflow
+
+        LevelCursor levels = book.levelCursor();
+        OrderCursor orders = book.orderCursor();
+        for(int side = 0; side < 2; side++) {
+            long[] prices = side == 0 ? book.bids().toArray() : book.asks().toArray();
+            ArrayList<Long> walked = new ArrayList<>();
+            for(LevelCursor cursor = side == 0 ? levels.bids() : levels.asks(); cursor.next(); ) {
+                walked.add(cursor.price());
+                assertThat(cursor.volume()).isEqualTo(book.levels().volume(cursor.price()));
+                ArrayList<Long> ids = new ArrayList<>();
+                for(orders.at(cursor.price()); orders.next(); ) {
+                    ids.add(orders.id());
+                    assertThat(orders.price()).isEqualTo(cursor.price());
+                    assertThat(orders.cookie()).isEqualTo(book.cookie(orders.id()));
+                }
+                assertThat(ids).containsExactlyElementsOf(book.orders(cursor.price()).boxed()::iterator);
+            }
+            assertThat(walked).containsExactlyElementsOf(LongStream.of(prices).boxed()::iterator);
+            assertThat(levels.next()).isFalse();
+        }
+        assertThat(levels.bids().next()).isEqualTo(book.hasBids());
+        assertThat(orders.at(0).next()).isEqualTo(book.head(0) != -1);
+    }
+
+    // cost and worst price of a market order of volume, from the level streams
+    static long[] sweep(OffHeapBook book, long volume) {
+        long need = Math.abs(volume);
+        long cost = 0;
+        long price = volume > 0 ? OrderBook.NO_ASK : OrderBook.NO_BID;
+        for(long p : volume > 0 ? book.asks().toArray() : book.bids().toArray()) {
+            if(need == 0)
+                break;
+            long taken = Math.min(need, Math.abs(book.levels().volume(p)));
+            need -= taken;
+            cost += taken * p;
+            price = p;
+        }
+        return new long[] {cost, need == 0 ? price : volume > 0 ? OrderBook.NO_ASK : OrderBook.NO_BID};
+    }
+
+    static long within(OffHeapBook book, long ticks) {
+        if(ticks > 0)
+            return book.asks().filter(p -> p < book.ask() + ticks).map(book.levels()::volume).sum();
+        return book.bids().filter(p -> p > book.bid() + ticks).map(book.levels()::volume).sum();
+    }
+
+    @Test
+    public void sweep_queries() throws Exception {
+        OffHeapBook summed = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .window(64)
+                .cumulative()
+                .build();
+        OffHeapBook walked = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .window(64)
+                .build();
+        long[] volumes = {1, 5, 37, 300, 10_000, 1_000_000_000};
+        long[] ticks = {1, 3, 10, 100, 2000};
+        for(int seed = 1; seed <= 20; seed++) {
+            for(OffHeapBook book : new OffHeapBook[] {summed, walked}) {
+                BookJournalTest.drive(book, 5_000, seed);
+                book.place(seed, -900 + seed, seed);        // levels in overflow
+                book.place(-seed, 900 - seed, seed);
+            }
+            for(OffHeapBook book : new OffHeapBook[] {summed, walked}) {
+                for(long volume : volumes) {
+                    for(long v : new long[] {volume, -volume}) {
+                        long[] expected = sweep(book, v);
+                        assertThat(book.sweepCost(v)).as("cost %d", v).isEqualTo(expected[0]);
+                        assertThat(book.priceForVolume(v)).as("price %d", v).isEqualTo(expected[1]);
+                    }
+                }
+                for(long t : ticks) {
+                    assertThat(book.volumeWithin(t)).as("within %d", t).isEqualTo(within(book, t));
+                    assertThat(book.volumeWithin(-t)).as("within %d", -t).isEqualTo(within(book, -t));
+                }
+            }
+        }
+        // sums are rebuilt from a snapshot
+        Path path = Files.createTempFile("book", ".snapshot");
+        try {
+            summed.snapshot(path);
+            OffHeapBook restored = OffHeapBook.restore(path, OffHeapBook.builder().cumulative());
+            for(long volume : volumes)
+                assertThat(restored.sweepCost(volume)).isEqualTo(summed.sweepCost(volume));
+        } finally {
+            Files.delete(path);
+        }
+        assertThat(summed.volumeWithin(0)).isEqualTo(0);
+        assertThat(summed.priceForVolume(1)).isEqualTo(summed.ask());
+        assertThat(summed.sweepCost(-1)).isEqualTo(summed.bid());
+    }
+
+    @Test
+    public void stop_orders() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events, OffHeapBook.builder().indexCookies().stops());
+
+        long a = book.place(-1,     101,    1);
+        long b = book.place(-1,     102,    2);
+        long c = book.place(-5,     110,    3);
+        book.place(1,               99,     4);
+        events.clear();
+        long market = book.placeStop(2, 101, OrderBook.NO_ASK, 10, OrderType.GTC);
+        long limit = book.placeStop(1, 101, 105, 11, OrderType.GTC);   // same trigger, released after market
+        long through = book.placeStop(1, 103, 103, 12, OrderType.GTC);
+        long sell = book.placeStop(-1, 98, 98, 13, OrderType.GTC);
+        assertThat(events).flatExtracting(Order::evt, Order::price, Order::id).containsExactly(
+                STOP, (long)101, market, STOP, (long)101, limit, STOP, (long)103, through, STOP, (long)98, sell);
+        assertThat(book.size()).isEqualTo(4);
+        assertThat(book.asks().toArray()).containsExactly(101, 102, 110);
+        assertThat(book.byCookie(10)).isEqualTo(market);
+
+        events.clear();
+        book.place(1, 100, 20);      // no trade, nothing triggers
+        assertThat(events).flatExtracting(Order::evt).containsExactly(PLACE);
+        book.cancelByCookie(20);
+
+        // trade at 101 releases both stops there, the market one trades through 103 and releases that
+        events.clear();
+        long active = book.place(1, 101, 21);
+        assertThat(events).flatExtracting(Order::evt, Order::id).containsExactly(
+                FILL, a, FILL, active,
+                TRIGGER, market, FILL, b, PARTFILL, market, PARTFILL, c, FILL, market,
+                TRIGGER, limit, PLACE, limit,
+                TRIGGER, through, PLACE, through);
+        assertThat(book.bids().toArray()).containsExactly(105, 103, 99);
+        assertThat(book.askVolume()).isEqualTo(-4);
+        assertThat(book.byCookie(10)).isEqualTo(-1);
+        assertThat(book.byCookie(11)).isEqualTo(limit);
+        assertThat(book.flags(limit)).isEqualTo(0);
+
+        long far = book.placeStop(-1, 90, OrderBook.NO_BID, 14, 50);
+        events.clear();
+        assertThat(book.amend(far, -2, 90)).isEqualTo(-1);
+        book.cancelByCookie(13);
+        assertThat(events).flatExtracting(Order::evt, Order::price, Order::id).containsExactly(
+                REJECT_AMEND, (long)0, far, CANCEL, (long)98, sell);
+        assertThat(book.byCookie(13)).isEqualTo(-1);
+
+        events.clear();
+        book.place(-3, 99, 22);      // trades down to 99, the cancelled stop at 98 and the one at 90 stay
+        assertThat(events).flatExtracting(Order::evt).doesNotContain(TRIGGER);
+        assertThat(book.hasBids()).isFalse();
+        events.clear();
+        book.expire(60);
+        assertThat(events).flatExtracting(Order::evt, Order::id).containsExactly(CANCEL, far);
+
+        // dispatch takes the limit in id
+        long stop = book.dispatch(STOP, -2, 95, 95, 15, OrderType.GTC);
+        assertThat(book.trigger(stop)).isEqualTo(95);
+        book.place(1, 95, 16);
+        book.place(-1, 95, 17);
+        assertThat(book.ask()).isEqualTo(95);
+        assertThat(book.askVolume()).isEqualTo(-2);
+        assertThat(book.head(95)).isEqualTo(stop);
+
+        events.clear();
+        assertThat(book(events).placeStop(1, 100, 100, 18, OrderType.GTC)).isEqualTo(-1);
+        assertThat(events).flatExtracting(Order::evt, Order::cookie).containsExactly(REJECT, (long)18);
+    }
+
+    // stops released by one trade enter in the order they were placed, whatever their side and trigger
+    @Test
+    public void stop_release_order() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events, OffHeapBook.builder().stops());
+        book.place(-1, 101, 1);
+        book.place(-1, 102, 2);
+        book.place(-1, 103, 3);
+        long s1 = book.placeStop(1, 103, 90, 10, OrderType.GTC);
+        long s4 = book.placeStop(-1, 104, 120, 11, OrderType.GTC);
+        long s2 = book.placeStop(1, 101, 89, 12, OrderType.GTC);
+        long s3 = book.placeStop(1, 102, 88, 13, OrderType.GTC);
+        long market = book.placeStop(5, 101, OrderBook.NO_ASK, 14, OrderType.GTC);
+
+        events.clear();
+        book.place(3, 103, 20);
+        assertThat(events.stream().filter(e -> e.evt() == TRIGGER).mapToLong(Order::id).toArray())
+                .containsExactly(s1, s4, s2, s3, market);
+        // the market stop takes the ask of s4 and the rest of it is cancelled
+        OrderMessage last = events.get(events.size() - 1);
+        assertThat(last.evt()).isEqualTo(CANCEL);
+        assertThat(last.id()).isEqualTo(market);
+        assertThat(last.active()).isEqualTo(4);
+        assertThat(last.price()).isEqualTo(101);
+        assertThat(book.bids().toArray()).containsExactly(90, 89, 88);
+        assertThat(book.hasAsks()).isFalse();
+    }
+
+    // cancelling a stop leaves the stops of the other side at the same trigger waiting
+    @Test
+    public void stop_cancel_other_side() {
+        for(boolean cancelSell : new boolean[] {true, false}) {
+            ArrayList<OrderMessage> events = new ArrayList<>();
+            OffHeapBook book = book(events, OffHeapBook.builder().stops());
+            book.place(-1, 10, 1);
+            long buy = book.placeStop(1, 10, 12, 10, OrderType.GTC);
+            long sell = book.placeStop(-1, 10, 8, 11, OrderType.GTC);
+            long left = cancelSell ? buy : sell;
+            book.cancel(cancelSell ? sell : buy, cancelSell ? 11 : 10);
+
+            events.clear();
+            book.place(1, 10, 2);      // trade at 10 releases the stop left there, which rests at its limit
+            assertThat(events.stream().filter(e -> e.evt() == TRIGGER).mapToLong(Order::id).toArray())
+                    .containsExactly(left);
+            assertThat(book.size()).isEqualTo(1);
+            assertThat(book.volume(left)).isEqualTo(cancelSell ? 1 : -1);
+        }
+    }
+
+    // every trade of a released stop releases the next one, a chain much deeper than a stack would take
+    @Test
+    public void stop_cascade() throws Exception {
+        final int N = 100_000;
+        long[] triggered = new long[1];
+        OffHeapBook.Builder builder = OffHeapBook.builder()
+                .capacity(2 * N)
+                .range(0, N)
+                .onEvent((evt, filled, active, price, id, cookie) -> {
+                    if(evt == TRIGGER)
+                        triggered[0]++;
+                });
+        OffHeapBook book = builder.stops().build();
+        for(long p = 1; p <= N; p++)
+            book.place(1, p, p);
+        for(long p = 2; p <= N; p++)
+            book.placeStop(-1, p, OrderBook.NO_BID, -p, OrderType.GTC);
+
+        Path path = Files.createTempFile("book", ".snapshot");
+        try {
+            book.snapshot(path);
+            for(OffHeapBook b : new OffHeapBook[] {book, OffHeapBook.restore(path, builder)}) {
+                triggered[0] = 0;
+                b.place(-1, N, 0);
+                assertThat(triggered[0]).isEqualTo(N - 1);
+                assertThat(b.hasBids()).isFalse();
+                assertThat(b.size()).isEqualTo(0);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void iceberg_orders() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events);
+
+        long a = book.place(-2,     101,    1);
+        long ice = book.placeIceberg(-10, 3, 101, 2, OrderType.GTC);
+        long b = book.place(-1,     101,    3);
+        assertThat(book.askVolume()).isEqualTo(-6);
+        assertThat(book.hiddenVolume(101)).isEqualTo(-7);
+        assertThat(book.reserve(ice)).isEqualTo(-7);
+
+        // shown part filled, the next one goes behind b in the same slot
+        events.clear();
+        long x = book.place(6, 101, 4);
+        assertThat(events).flatExtracting(Order::evt, Order::active, Order::id).containsExactly(
+                FILL, (long)0, a, PARTFILL, (long)2, x,
+                PARTFILL, (long)0, ice, PARTFILL, (long)3, x, REPLENISH, (long)-3, ice,
+                FILL, (long)0, b, FILL, (long)1, x);
+        assertThat(book.orders(101).toArray()).containsExactly(ice);
+        assertThat(book.askVolume()).isEqualTo(-3);
+        assertThat(book.hiddenVolume(101)).isEqualTo(-4);
+
+        // alone at its level it is matched again and again until the reserve runs out
+        events.clear();
+        long y = book.place(8, 101, 5);
+        assertThat(events).flatExtracting(Order::evt, Order::id).containsExactly(
+                PARTFILL, ice, PARTFILL, y, REPLENISH, ice,
+                PARTFILL, ice, PARTFILL, y, REPLENISH, ice,
+                FILL, ice, PARTFILL, y, PLACE, y);
+        assertThat(book.hasAsks()).isFalse();
+        assertThat(book.hiddenVolume(101)).isEqualTo(0);
+        assertThat(book.bid()).isEqualTo(101);
+        assertThat(book.bidVolume()).isEqualTo(1);
+        assertThat(book.size()).isEqualTo(1);
+
+        long resting = book.placeIceberg(5, 2, 100, 6, OrderType.GTC);
+        assertThat(book.hiddenVolume(100)).isEqualTo(3);
+        events.clear();
+        assertThat(book.amend(resting, 1, 100)).isEqualTo(-1);
+        book.cancel(resting, 6);
+        assertThat(events).flatExtracting(Order::evt, Order::active).containsExactly(REJECT_AMEND, (long)0, CANCEL, (long)2);
+        assertThat(book.hiddenVolume(100)).isEqualTo(0);
+        assertThat(book.bids().toArray()).containsExactly(101);
+
+        // takes with all of its volume, the rest is shown a peak at a time
+        long active = book.placeIceberg(-4, 1, 101, 7, OrderType.GTC);
+        assertThat(book.ask()).isEqualTo(101);
+        assertThat(book.askVolume()).isEqualTo(-1);
+        assertThat(book.hiddenVolume(101)).isEqualTo(-2);
+        assertThat(book.peak(active)).isEqualTo(-1);
+
+        long dispatched = book.dispatch(ICEBERG, 2, 99, 1, 8, OrderType.GTC);
+        assertThat(book.volume(dispatched)).isEqualTo(1);
+        assertThat(book.hiddenVolume(99)).isEqualTo(1);
+    }
+
+    @Test
+    public void pegged_orders() {
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events);
+
+        assertThat(book.placePeg(1, OrderType.PEG_PRIMARY, 0, 1, OrderType.GTC)).isEqualTo(-1);    // nothing to follow
+        long bid = book.place(5,    100,    1);
+        long ask = book.place(-5,   110,    2);
+        long primary = book.placePeg(2, OrderType.PEG_PRIMARY, 0, 3, OrderType.GTC);
+        long below = book.placePeg(3, OrderType.PEG_PRIMARY, -2, 4, OrderType.GTC);
+        long buyMid = book.placePeg(1, OrderType.PEG_MID, 0, 5, OrderType.GTC);
+        long sellMid = book.placePeg(-1, OrderType.PEG_MID, 0, 6, OrderType.GTC);
+        long sell = book.placePeg(-4, OrderType.PEG_PRIMARY, 1, 7, OrderType.GTC);
+        assertThat(book.placePeg(1, OrderType.PEG_PRIMARY, 1, 8, OrderType.GTC)).isEqualTo(-1);   // would lead
+        assertThat(book.bids().toArray()).containsExactly(104, 100, 98);
+        assertThat(book.asks().toArray()).containsExactly(106, 110, 111);
+        assertThat(book.orders(100).toArray()).containsExactly(bid, primary);
+        assertThat(book.flags(buyMid)).isEqualTo(OrderType.PEG_MID);
+
+        // better bid: its pegs follow to the tail of their new levels, sell mid moves away first
+        events.clear();
+        long better = book.place(1, 102, 9);
+        assertThat(events).flatExtracting(Order::evt, Order::price, Order::id).containsExactly(
+                PLACE, (long)102, better,
+                AMEND, (long)102, primary, AMEND, (long)100, below,
+                AMEND, (long)107, sellMid, AMEND, (long)105, buyMid);
+        assertThat(book.orders(102).toArray()).containsExactly(better, primary);
+
+        events.clear();
+        book.cancel(better, 9);
+        assertThat(events).flatExtracting(Order::evt, Order::price, Order::id).containsExactly(
+                CANCEL, (long)102, better,
+                AMEND, (long)100, primary, AMEND, (long)98, below,
+                AMEND, (long)104, buyMid, AMEND, (long)106, sellMid);
+
+        // no bid left but pegs, they keep their prices until one comes
+        events.clear();
+        book.place(-6, 100, 10);
+        assertThat(events).flatExtracting(Order::evt).doesNotContain(AMEND);
+        assertThat(book.bids().toArray()).containsExactly(100, 98);
+        events.clear();
+        book.place(1, 95, 11);
+        assertThat(events).flatExtracting(Order::evt, Order::price, Order::id).endsWith(
+                AMEND, (long)95, primary, AMEND, (long)93, below, AMEND, (long)103, sellMid);
+        assertThat(book.ask()).isEqualTo(103);
+        assertThat(book.head(110)).isEqualTo(ask);
+        assertThat(book.head(111)).isEqualTo(sell);
+
+        long dispatched = book.dispatch(PEG, 1, -1, OrderType.PEG_PRIMARY, 12, OrderType.GTC);
+        assertThat(book.price(dispatched)).isEqualTo(94);
+        assertThat(book.amend(dispatched, 1, 90)).isEqualTo(-1);
+    }
+
+    // after every command each peg is where its reference prices put it and the book is not crossed
+    @Test
+    public void pegs_follow_references() throws Exception {
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-10000,10000)
+                .build();
+        Random random = new Random(1);
+        OrderCursor orders = book.orderCursor();
+        for(int i = 0; i < 20_000; i++) {
+            boolean buy = random.nextBoolean();
+            long volume = (1 + random.nextInt(5)) * (buy ? 1 : -1);
+            int r = random.nextInt(10);
+            if(r < 2)
+                book.placePeg(volume, random.nextBoolean() ? OrderType.PEG_PRIMARY : OrderType.PEG_MID,
+                        (buy ? -1 : 1) * random.nextInt(3), i, OrderType.GTC);
+            else if(r < 4 && (buy ? book.hasBids() : book.hasAsks()))
+                book.cancel(book.head(buy ? book.bid() : book.ask()), 0);
+            else
+                book.place(volume, 90 + random.nextInt(21), i, OrderType.GTC);
+
+            long bid = OrderBook.NO_BID, ask = OrderBook.NO_ASK;
+            for(long price : book.bids().toArray())
+                for(orders.at(price); orders.next(); )
+                    if(book.flags(orders.id()) == 0)
+                        bid = Math.max(bid, price);
+            for(long price : book.asks().toArray())
+                for(orders.at(price); orders.next(); )
+                    if(book.flags(orders.id()) == 0)
+                        ask = Math.min(ask, price);
+            if(book.hasBids() && book.hasAsks())
+                assertThat(book.bid()).isLessThan(book.ask());
+            for(long price : LongStream.concat(book.bids(), book.asks()).toArray()) {
+                for(orders.at(price); orders.next(); ) {
+                    long id = orders.id(), flags = book.flags(id), offset = book.pegOffset(id);
+                    boolean buyer = orders.volume() > 0;
+                    if(flags == OrderType.PEG_PRIMARY && (buyer ? bid != OrderBook.NO_BID : ask != OrderBook.NO_ASK))
+                        assertThat(price).isEqualTo((buyer ? bid : ask) + offset);
+                    else if(flags == OrderType.PEG_MID && bid != OrderBook.NO_BID && ask != OrderBook.NO_ASK)
+                        assertThat(price).isEqualTo((buyer ? Math.floorDiv(bid + ask - 1, 2)
+                                : -Math.floorDiv(-bid - ask - 1, 2)) + offset);
+                }
+            }
+        }
+        // restored pegs follow the same way
+        Path path = Files.createTempFile("book", ".snapshot");
+        try {
+            book.snapshot(path);
+            OffHeapBook restored = OffHeapBook.restore(path);
+            for(OffHeapBook b : new OffHeapBook[] {book, restored}) {
+                while(b.hasBids())
+                    b.cancel(b.head(b.bid()), 0);
+                b.place(1, 80, 0);
+            }
+            assertThat(restored.bids().toArray()).containsExactly(book.bids().toArray());
+            assertThat(restored.asks().toArray()).containsExactly(book.asks().toArray());
+            assertThat(restored.size()).isEqualTo(book.size());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void conditional_orders() {
+        for(boolean cumulative : new boolean[] {false, true}) {
+            ArrayList<OrderMessage> events = new ArrayList<>();
+            OffHeapBook book = book(events, cumulative ? OffHeapBook.builder().cumulative() : OffHeapBook.builder());
+
+            book.place(-2,  101,    1);
+            book.place(-3,  102,    2);
+            book.place(-5,  104,    3);
+            book.place(4,   99,     4);
+
+            // rejected before anything is taken
+            events.clear();
+            assertThat(book.place(6, 102, 5, OrderType.GTC, OrderType.FOK, 0)).isEqualTo(-1);
+            assertThat(events).flatExtracting(Order::evt, Order::cookie).containsExactly(REJECT_FOK, (long)5);
+            assertThat(book.asks().toArray()).containsExactly(101, 102, 104);
+            assertThat(book.askVolume()).isEqualTo(-2);
+
+            events.clear();
+            long fok = book.place(5, 102, 6, OrderType.GTC, OrderType.FOK, 0);
+            assertThat(events).flatExtracting(Order::evt).containsExactly(FILL, PARTFILL, FILL, FILL);
+            assertThat(book.volume(fok)).isEqualTo(0);
+            assertThat(book.ask()).isEqualTo(104);
+
+            events.clear();
+            assertThat(book.place(10, 104, 7, OrderType.GTC, OrderType.MIN_QTY, 6)).isEqualTo(-1);
+            assertThat(events).flatExtracting(Order::evt).containsExactly(REJECT_MIN_QTY);
+            long min = book.place(10, 104, 8, OrderType.GTC, OrderType.MIN_QTY, 5);
+            assertThat(book.hasAsks()).isFalse();
+            assertThat(book.bid()).isEqualTo(104);
+            assertThat(book.volume(min)).isEqualTo(5);
+
+            events.clear();
+            assertThat(book.place(-1, 104, 9, OrderType.GTC, OrderType.POST_ONLY, 0)).isEqualTo(-1);
+            assertThat(events).flatExtracting(Order::evt).containsExactly(REJECT_POST_ONLY);
+            assertThat(book.bidVolume()).isEqualTo(5);
+            long post = book.place(-1, 105, 10, OrderType.GTC, OrderType.POST_ONLY, 0);
+            assertThat(book.ask()).isEqualTo(105);
+
+            assertThat(book.dispatch(PLACE_FOK, -6, 104, -1, 11, OrderType.GTC)).isEqualTo(-1);
+            assertThat(book.dispatch(PLACE_MIN_QTY, -6, 104, 5, 12, OrderType.GTC)).isNotEqualTo(-1);
+            assertThat(book.bid()).isEqualTo(99);
+            assertThat(book.ask()).isEqualTo(104);
+            assertThat(book.askVolume()).isEqualTo(-1);
+            assertThat(book.dispatch(PLACE_POST_ONLY, 1, 105, -1, 13, OrderType.GTC)).isEqualTo(-1);
+            assertThat(book.head(105)).isEqualTo(post);
+        }
+    }
+
+    @Test
+    public void self_trade_prevention() {
+        int[] modes = {OffHeapBook.STP_NONE, OffHeapBook.STP_CANCEL_NEWEST, OffHeapBook.STP_CANCEL_OLDEST,
+                OffHeapBook.STP_DECREMENT_BOTH};
+        for(int mode : modes) {
+            ArrayList<OrderMessage> events = new ArrayList<>();
+            OffHeapBook book = book(events, OffHeapBook.builder().selfTrade(mode));
+
+            // orders without an owner are never checked
+            assertThat(book.placeOwner()).isEqualTo(0);
+            book.place(-1,  99,     7);
+            book.place(1,   99,     8);
+            assertThat(events).flatExtracting(Order::evt).containsExactly(PLACE, FILL, FILL);
+
+            book.placeOwner(1);
+            long a = book.place(-2,  101,    1);
+            long b = book.place(-3,  101,    2);
+            book.dispatch(OWNER, 0, 0, 2, 0, OrderType.GTC);
+            assertThat(book.placeOwner()).isEqualTo(2);
+            long c = book.place(-4,  101,    3);
+            assertThat(book.owner(a)).isEqualTo(1);
+            assertThat(book.owner(c)).isEqualTo(2);
+
+            book.placeOwner(1);
+            events.clear();
+            long d = book.place(6,   101,    4);
+            switch(mode) {
+                case OffHeapBook.STP_NONE:
+                    assertThat(events).flatExtracting(Order::evt, Order::id)
+                            .containsExactly(FILL, a, PARTFILL, d, FILL, b, PARTFILL, d, PARTFILL, c, FILL, d);
+                    assertThat(book.askVolume()).isEqualTo(-3);
+                    break;
+                case OffHeapBook.STP_CANCEL_NEWEST:
+                    assertThat(events).flatExtracting(Order::evt, Order::id, Order::active)
+                            .containsExactly(CANCEL, d, (long)6);
+                    assertThat(book.askVolume()).isEqualTo(-9);
+                    assertThat(book.head(101)).isEqualTo(a);
+                    assertThat(book.hasBids()).isFalse();
+                    break;
+                case OffHeapBook.STP_CANCEL_OLDEST:
+                    assertThat(events).flatExtracting(Order::evt, Order::id)
+                            .containsExactly(CANCEL, a, CANCEL, b, FILL, c, PARTFILL, d, PLACE, d);
+                    assertThat(book.hasAsks()).isFalse();
+                    assertThat(book.bid()).isEqualTo(101);
+                    assertThat(book.bidVolume()).isEqualTo(2);
+                    break;
+                case OffHeapBook.STP_DECREMENT_BOTH:
+                    assertThat(events).flatExtracting(Order::evt, Order::id)
+                            .containsExactly(CANCEL, a, CANCEL, b, PARTFILL, c, FILL, d);
+                    assertThat(book.askVolume()).isEqualTo(-3);
+                    assertThat(book.hasBids()).isFalse();
+                    break;
+            }
+            assertThat(book.size()).isEqualTo(mode == OffHeapBook.STP_CANCEL_NEWEST ? 3 : 1);
+        }
+
+        // a self-trade takes the reserve of an iceberg first, its shown part keeps its place
+        ArrayList<OrderMessage> events = new ArrayList<>();
+        OffHeapBook book = book(events, OffHeapBook.builder().selfTrade(OffHeapBook.STP_DECREMENT_BOTH));
+        book.placeOwner(7);
+        long ice = book.placeIceberg(-10, 2, 102, 1, OrderType.GTC);
+        book.placeOwner(8);
+        long other = book.place(-1, 102, 2);
+        book.placeOwner(7);
+        long buy = book.place(9, 102, 3);
+        assertThat(events.subList(2, events.size())).flatExtracting(Order::evt, Order::id, Order::active)
+                .containsExactly(AMEND, ice, (long)-1, CANCEL, buy, (long)9);
+        assertThat(book.head(102)).isEqualTo(ice);
+        assertThat(book.reserve(ice)).isEqualTo(0);
+        assertThat(book.hiddenVolume(102)).isEqualTo(0);
+        assertThat(book.askVolume()).isEqualTo(-2);
+        book.placeOwner(8);
+        book.place(1, 102, 4);
+        assertThat(book.head(102)).isEqualTo(other);
+    }
+
+    // an order that only meets its owner's orders trades nothing and releases no stops
+    @Test
+    public void self_trade_keeps_stops() {
+        int[] modes = {OffHeapBook.STP_CANCEL_NEWEST, OffHeapBook.STP_CANCEL_OLDEST, OffHeapBook.STP_DECREMENT_BOTH};
+        for(int mode : modes) {
+            ArrayList<OrderMessage> events = new ArrayList<>();
+            OffHeapBook book = book(events, OffHeapBook.builder().stops().selfTrade(mode));
+            book.placeOwner(1);
+            book.place(1, 100, 1);
+            book.placeOwner(3);
+            book.place(1, 99, 2);
+            book.placeOwner(2);
+            long stop = book.placeStop(-1, 100, OrderBook.NO_BID, 3, OrderType.GTC);
+
+            events.clear();
+            book.placeOwner(1);
+            book.place(-1, 100, 4);
+            assertThat(events).flatExtracting(Order::evt).doesNotContain(FILL, PARTFILL, TRIGGER);
+            assertThat(book.trigger(stop)).isEqualTo(100);
+
+            // a trade through 100 still releases it
+            events.clear();
+            book.placeOwner(4);
+            book.place(-1, 99, 5);
+            assertThat(events).flatExtracting(Order::evt, Order::id).contains(TRIGGER, stop);
+        }
+    }
+
     private static final String[] BASE_JVM_ARGS = {
             "-server",
             "-dsa",
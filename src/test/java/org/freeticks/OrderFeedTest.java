@@ -0,0 +1,226 @@
+package org.freeticks;
+
+import net.openhft.chronicle.core.io.IOTools;
+import org.freeticks.lob.EventRing;
+import org.freeticks.lob.OffHeapBook;
+import org.freeticks.lob.OrderFeed;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.freeticks.OrderEvent.AMEND;
+import static org.freeticks.OrderEvent.ICEBERG;
+import static org.freeticks.lob.OrderFeed.*;
+
+public class OrderFeedTest
+{
+    protected static final Logger LOG = LoggerFactory.getLogger(OrderFeedTest.class);
+
+    // orders of a consumer applying messages, queues keep priority
+    static class View implements OrderFeed.OrderHandler {
+        final TreeMap<Long, LinkedHashMap<Long, Long>> levels = new TreeMap<>();
+        final Map<Long, Long> prices = new HashMap<>();
+        long seq;
+        long snapshot;      // seq of the last snapshot applied
+
+        @Override
+        public void apply(int type, long seq, long id, long price, long volume) {
+            if(type == SNAPSHOT) {
+                levels.clear();
+                prices.clear();
+                snapshot = seq;
+            } else if(type != ADD || seq != this.seq)   // snapshot orders share its seq
+                assertThat(seq).isEqualTo(this.seq + 1);
+            this.seq = seq;
+            switch(type) {
+                case ADD:
+                    add(id, price, volume);
+                    break;
+                case MODIFY:
+                    Long old = prices.get(id);
+                    if(old != null && old == price && Math.abs(volume) <= Math.abs(levels.get(price).get(id)))
+                        levels.get(price).put(id, volume);
+                    else {
+                        remove(id);
+                        add(id, price, volume);
+                    }
+                    break;
+                case DELETE:
+                case TRADE:
+                    remove(id);
+                    break;
+                case EXECUTE:
+                    LinkedHashMap<Long, Long> level = levels.get(price);
+                    long left = level.get(id) - volume;
+                    if(left == 0)
+                        remove(id);
+                    else
+                        level.put(id, left);
+                    break;
+            }
+        }
+
+        void add(long id, long price, long volume) {
+            levels.computeIfAbsent(price, p -> new LinkedHashMap<>()).put(id, volume);
+            prices.put(id, price);
+        }
+
+        void remove(long id) {
+            Long price = prices.remove(id);
+            if(price == null)
+                return;
+            LinkedHashMap<Long, Long> level = levels.get(price);
+            level.remove(id);
+            if(level.isEmpty())
+                levels.remove(price);
+        }
+    }
+
+    static TreeMap<Long, LinkedHashMap<Long, Long>> orders(OffHeapBook book) {
+        TreeMap<Long, LinkedHashMap<Long, Long>> orders = new TreeMap<>();
+        LevelCursor levels = book.levelCursor();
+        OrderCursor cursor = book.orderCursor();
+        for(int side = 0; side < 2; side++) {
+            for(LevelCursor walk = side == 0 ? levels.bids() : levels.asks(); walk.next(); ) {
+                LinkedHashMap<Long, Long> level = new LinkedHashMap<>();
+                for(cursor.at(walk.price()); cursor.next(); )
+                    level.put(cursor.id(), cursor.volume());
+                orders.put(walk.price(), level);
+            }
+        }
+        return orders;
+    }
+
+    // random commands with icebergs and amends of resting orders, some across the spread
+    static void drive(OffHeapBook book, int niters, long seed) {
+        Random random = new Random(seed);
+        for(int i = 0; i < niters / 100; i++) {
+            long volume = 5 + random.nextInt(20);
+            boolean buy = random.nextBoolean();
+            long price = 95 + random.nextInt(11);     // around the emitter's prices, some crossing
+            book.dispatch(ICEBERG, buy ? volume : -volume, price, 1 + random.nextInt(3), i, OrderType.GTC);
+        }
+        BookJournalTest.drive(book, niters, seed);
+        for(int i = 0; i < niters / 10; i++) {
+            if(!book.hasBids() || !book.hasAsks())
+                break;
+            long id = book.head(random.nextBoolean() ? book.bid() : book.ask());
+            long volume = book.volume(id);
+            long price = book.price(id) + (volume > 0 ? 1 : -1) * (random.nextInt(5) - 3);
+            book.dispatch(AMEND, volume > 0 ? 1 + random.nextInt(10) : -1 - random.nextInt(10), price, id,
+                    book.cookie(id), OrderType.GTC);
+        }
+    }
+
+    @Test
+    public void consumer_follows_book() throws Exception {
+        Path path = Files.createTempDirectory("feed");
+        try(OrderFeed feed = new OrderFeed(path);
+            OrderFeed.Reader reader = new OrderFeed.Reader(path)) {
+            OffHeapBook book = OffHeapBook.builder()
+                    .range(-1000, 1000)
+                    .orders(feed)
+                    .build();
+            View view = new View();
+            long start = System.nanoTime();
+            for(int seed = 1; seed <= 5; seed++) {
+                drive(book, 20_000, seed);
+                while(reader.read(view) > 0)
+                    ;
+                assertThat(view.levels).isEqualTo(orders(book));
+            }
+            long nanos = System.nanoTime() - start;
+            LOG.info("{} messages, {} mio/s", feed.seq(), feed.seq() * 1e3 / nanos);
+            assertThat(view.seq).isEqualTo(feed.seq());
+        } finally {
+            IOTools.deleteDirWithFiles(path.toFile(), 10);
+        }
+    }
+
+    @Test
+    public void feed_thread_drains_ring() throws Exception {
+        Path path = Files.createTempDirectory("feed");
+        try(OrderFeed feed = new OrderFeed(path);
+            OrderFeed.Reader reader = new OrderFeed.Reader(path)) {
+            EventRing ring = new EventRing(1024);
+            OffHeapBook book = OffHeapBook.builder()
+                    .range(-1000, 1000)
+                    .events(ring)
+                    .build();
+            AtomicBoolean done = new AtomicBoolean();
+            Thread thread = new Thread(() -> {
+                while(!done.get() || !ring.isEmpty())
+                    if(feed.drain(ring, 256) == 0)
+                        Thread.yield();
+            });
+            thread.start();
+            drive(book, 50_000, 1);
+            done.set(true);
+            thread.join();
+
+            View view = new View();
+            while(reader.read(view) > 0)
+                ;
+            assertThat(view.seq).isEqualTo(feed.seq());
+            assertThat(view.levels).isEqualTo(orders(book));
+        } finally {
+            IOTools.deleteDirWithFiles(path.toFile(), 10);
+        }
+    }
+
+    @Test
+    public void gap_recovers_from_snapshot() throws Exception {
+        Path path = Files.createTempDirectory("feed");
+        try(OrderFeed feed = new OrderFeed(path);
+            OrderFeed.Reader reader = new OrderFeed.Reader(path)) {
+            OffHeapBook book = OffHeapBook.builder()
+                    .range(-1000, 1000)
+                    .orders(feed)
+                    .build();
+            View view = new View();
+
+            // no snapshot yet, recovery replays the whole queue
+            drive(book, 10_000, 1);
+            assertThat(reader.recover(view)).isEqualTo(feed.seq());
+            assertThat(view.levels).isEqualTo(orders(book));
+
+            drive(book, 10_000, 2);
+            feed.snapshot(book);
+            drive(book, 10_000, 3);
+            long last = feed.seq();
+            feed.snapshot(book);
+            drive(book, 10_000, 4);
+
+            // messages lost on the way to a consumer show as a gap in seq
+            View lossy = new View();
+            reader.recover(lossy);
+            drive(book, 10_000, 5);
+            while(reader.read((type, seq, id, price, volume) -> {}) > 0)
+                ;
+            drive(book, 10_000, 6);
+            long[] next = new long[1];
+            reader.read((type, seq, id, price, volume) -> next[0] = seq);
+            assertThat(next[0]).isGreaterThan(lossy.seq + 1);
+
+            assertThat(reader.recover(lossy)).isEqualTo(feed.seq());
+            assertThat(lossy.snapshot).isEqualTo(last);
+            assertThat(lossy.levels).isEqualTo(orders(book));
+            drive(book, 10_000, 7);
+            while(reader.read(lossy) > 0)
+                ;
+            assertThat(lossy.levels).isEqualTo(orders(book));
+        } finally {
+            IOTools.deleteDirWithFiles(path.toFile(), 10);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.freeticks;
+
+import net.openhft.chronicle.core.io.IOTools;
+import org.freeticks.lob.OffHeapBook;
+import org.freeticks.lob.TopOfBook;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.freeticks.OrderEvent.*;
+
+public class TopOfBookTest
+{
+    static void assertSameTop(TopOfBook.View view, OffHeapBook book) {
+        assertThat(view.bid()).isEqualTo(book.bid());
+        assertThat(view.ask()).isEqualTo(book.ask());
+        assertThat(view.bidVolume()).isEqualTo(book.hasBids() ? book.bidVolume() : 0);
+        assertThat(view.askVolume()).isEqualTo(book.hasAsks() ? book.askVolume() : 0);
+    }
+
+    @Test
+    public void view_follows_book() {
+        TopOfBook top = new TopOfBook();
+        TopOfBook.View view = top.view();
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-1000, 1000)
+                .top(top)
+                .build();
+        assertThat(view.poll()).isTrue();
+        assertThat(view.bid()).isEqualTo(OrderBook.NO_BID);
+        assertThat(view.poll()).isFalse();
+
+        for(int seed = 1; seed <= 100; seed++) {
+            BookJournalTest.drive(book, 1000, seed);
+            view.poll();
+            assertSameTop(view, book);
+        }
+        // deeper changes are not published
+        long seq = view.seq();
+        book.dispatch(PLACE, 1, book.bid() - 1, -1, 0, OrderType.GTC);
+        assertThat(view.poll()).isFalse();
+        assertThat(view.seq()).isEqualTo(seq);
+        book.dispatch(PLACE, 1, book.bid(), -1, 0, OrderType.GTC);
+        assertThat(view.poll()).isTrue();
+        assertThat(view.seq()).isEqualTo(seq + 1);
+        assertSameTop(view, book);
+        // the book's methods publish as well
+        long id = book.place(-1, book.ask(), 0, OrderType.GTC);
+        assertThat(view.poll()).isTrue();
+        assertSameTop(view, book);
+        book.cancel(id, 0);
+        assertThat(view.poll()).isTrue();
+        assertSameTop(view, book);
+        book.amend(book.place(1, book.bid(), 0, OrderType.GTC), 2, book.bid());
+        assertThat(view.poll()).isTrue();
+        assertSameTop(view, book);
+    }
+
+    // every published top has bid volume equal to bid and ask volume to ask - M, a torn copy would mix steps
+    @Test
+    public void reader_thread_sees_whole_updates() throws Exception {
+        final long M = 100_000;
+        TopOfBook top = new TopOfBook();
+        OffHeapBook book = OffHeapBook.builder()
+                .range(-M, M)
+                .top(top)
+                .build();
+        AtomicBoolean done = new AtomicBoolean();
+        long[] polls = new long[3];     // whole tops seen, torn ones, last seq
+        Thread reader = new Thread(() -> {
+            TopOfBook.View view = top.view();
+            while(!done.get()) {
+                long seq = view.seq();
+                if(!view.poll() || view.bid() == OrderBook.NO_BID || view.ask() == OrderBook.NO_ASK)
+                    continue;
+                if(view.seq() <= seq
+                        || view.bidVolume() != view.bid()
+                        || view.askVolume() != view.ask() - M
+                        || view.bid() + view.ask() - M < 0 || view.bid() + view.ask() - M > 1)
+                    polls[1]++;
+                polls[0]++;
+                polls[2] = view.seq();
+            }
+        });
+        reader.start();
+        long bid = -1, ask = -1;
+        for(long p = 1; p < 50_000; p++) {
+            long nextBid = book.dispatch(PLACE, p, p, -1, p, OrderType.GTC);
+            long nextAsk = book.dispatch(PLACE, -p, M - p, -1, p, OrderType.GTC);
+            if(bid >= 0) {
+                book.dispatch(CANCEL, 0, 0, bid, p - 1, OrderType.GTC);
+                book.dispatch(CANCEL, 0, 0, ask, p - 1, OrderType.GTC);
+            }
+            bid = nextBid;
+            ask = nextAsk;
+        }
+        done.set(true);
+        reader.join();
+        assertThat(polls[0]).isGreaterThan(0);
+        assertThat(polls[1]).isEqualTo(0);
+        assertThat(polls[2]).isLessThanOrEqualTo(2 * 50_000);
+    }
+
+    @Test
+    public void other_process_maps_slot() throws Exception {
+        Path dir = Files.createTempDirectory("top");
+        try {
+            MappedAllocator allocator = new MappedAllocator(dir);
+            TopOfBook top = new TopOfBook(allocator);
+            OffHeapBook book = OffHeapBook.builder()
+                    .range(-1000, 1000)
+                    .top(top)
+                    .build();
+            BookJournalTest.drive(book, 10_000);
+
+            TopOfBook.View view = TopOfBook.open(allocator.file(0)).view();
+            assertThat(view.poll()).isTrue();
+            assertSameTop(view, book);
+            BookJournalTest.drive(book, 10_000, 2);
+            view.poll();
+            assertSameTop(view, book);
+        } finally {
+            IOTools.deleteDirWithFiles(dir.toFile(), 2);
+        }
+    }
+}